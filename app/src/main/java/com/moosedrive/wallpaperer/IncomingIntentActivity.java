@@ -23,7 +23,8 @@ public class IncomingIntentActivity extends AppCompatActivity implements IWallpa
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         store = ImageStore.getInstance(getApplicationContext());
-        store.updateFromPrefs(getApplicationContext());
+        //The library loads in the background; adding images waits for it
+        store.loadAsync(getApplicationContext(), null);
         setContentView(R.layout.activity_incoming_intent);
         processIncomingIntentsAndExit();
         super.onCreate(savedInstanceState);
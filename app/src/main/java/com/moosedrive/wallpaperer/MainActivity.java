@@ -9,6 +9,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.net.Uri;
@@ -20,6 +21,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 import android.widget.PopupMenu;
@@ -55,9 +57,18 @@ import com.google.android.material.snackbar.Snackbar;
 import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.moosedrive.wallpaperer.data.ImageObject;
 import com.moosedrive.wallpaperer.data.ImageStore;
+import com.moosedrive.wallpaperer.data.StoreChangeSet;
 import com.moosedrive.wallpaperer.utils.BackgroundExecutor;
+import com.moosedrive.wallpaperer.utils.ContentScrubber;
+import com.moosedrive.wallpaperer.utils.ImageBackfillWorker;
+import com.moosedrive.wallpaperer.utils.IntegrityScan;
+import com.moosedrive.wallpaperer.utils.PerceptualHash;
 import com.moosedrive.wallpaperer.utils.PreferenceHelper;
+import com.moosedrive.wallpaperer.utils.PurgeQueue;
+import com.moosedrive.wallpaperer.utils.StorageCollector;
+import com.moosedrive.wallpaperer.utils.StorageMigration;
 import com.moosedrive.wallpaperer.utils.StorageUtils;
+import com.moosedrive.wallpaperer.utils.ThumbnailQueue;
 import com.moosedrive.wallpaperer.wallpaper.IWallpaperAddedListener;
 import com.moosedrive.wallpaperer.wallpaper.IWallpaperSetListener;
 import com.moosedrive.wallpaperer.wallpaper.WallpaperManager;
@@ -65,8 +76,10 @@ import com.moosedrive.wallpaperer.wallpaper.WallpaperWorker;
 import com.stfalcon.imageviewer.StfalconImageViewer;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -79,7 +92,7 @@ import me.zhanghai.android.fastscroll.FastScrollerBuilder;
  */
 public class MainActivity extends AppCompatActivity
         implements IWallpaperSetListener,
-        ImageStore.ImageStoreListener,
+        ImageStore.ChangeListener,
         RVAdapter.ItemClickListener,
         SharedPreferences.OnSharedPreferenceChangeListener,
         IWallpaperAddedListener
@@ -120,8 +133,9 @@ public class MainActivity extends AppCompatActivity
         constraintLayout = findViewById(R.id.constraint_layout);
         //Setup the RecyclerView for all the cards
         setupRecyclerView();
-        if (store.size() == 0)
-            store.updateFromPrefs(context);
+        reportFirstFrame();
+        //Cards appear as the library loads; the rest of the startup work needs all of it
+        store.loadAsync(context, this::onLibraryLoaded);
         //Image Chooser
         registerImageChooser();
         settingsResultLauncher = getSettingsResultLauncher();
@@ -131,24 +145,71 @@ public class MainActivity extends AppCompatActivity
 
         //Create swipe action for items
         enableSwipeToDeleteAndUndo();
+        //The snapshot updater must be registered before this activity's listener
+        PreferenceHelper.getSnapshot(context);
         PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(this);
+
+        StorageCollector.schedulePeriodic(context);
+        ContentScrubber.schedulePeriodic(context);
+        timerArc = findViewById(R.id.timerArc);
+        if (PreferenceHelper.isActive(context)) {
+            //Make sure the scheduler survived, without waiting on WorkManager here
+            Context appContext = getApplicationContext();
+            BackgroundExecutor.getExecutor().execute(() -> {
+                try {
+                    if (WorkManager.getInstance(appContext).getWorkInfosByTag(appContext.getString(R.string.work_random_wallpaper_id)).get().size() == 0) {
+                        WallpaperWorker.scheduleRandomWallpaper(appContext);
+                    }
+                } catch (ExecutionException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            timerArc.start();
+        }
+    }
+
+    /**
+     * Startup work that needs the whole library.
+     */
+    private void onLibraryLoaded() {
+        if (isDestroyed())
+            return;
+        //Finish deleting anything removed before the app last stopped
+        PurgeQueue.drain(context);
+        StorageMigration.migrateIfNeeded(context);
+        ImageBackfillWorker.backfillIfNeeded(context);
+        //Files are not checked while loading; flag the missing ones now, all at once
+        Context appContext = getApplicationContext();
+        BackgroundExecutor.getExecutor().execute(() -> {
+            try {
+                store.setMissing(IntegrityScan.scan(appContext, store.getImageObjectArray(), false).getMissing());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        invalidateOptionsMenu();
         boolean firstTime = PreferenceManager.getDefaultSharedPreferences(context).getBoolean(getString(R.string.first_time), true);
 
         if (firstTime && store.size() == 0) {
             runFirstTimeShowcase();
         }
+    }
 
-        timerArc = findViewById(R.id.timerArc);
-        if (PreferenceHelper.isActive(context)) {
-            try {
-                if (WorkManager.getInstance(context).getWorkInfosByTag(getString(R.string.work_random_wallpaper_id)).get().size() == 0) {
-                    WallpaperWorker.scheduleRandomWallpaper(context);
+    /**
+     * Report the first frame that shows cards (or the empty library) as fully drawn, so the
+     * startup time shows up in the system's "Fully drawn" metric.
+     */
+    private void reportFirstFrame() {
+        rv.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (adapter.getItemCount() > 0 || (store.isLoaded() && store.size() == 0)) {
+                    rv.getViewTreeObserver().removeOnPreDrawListener(this);
+                    reportFullyDrawn();
                 }
-            } catch (ExecutionException | InterruptedException e) {
-                e.printStackTrace();
+                return true;
             }
-            timerArc.start();
-        }
+        });
     }
 
     /**
@@ -162,7 +223,6 @@ public class MainActivity extends AppCompatActivity
                     if (result.getResultCode() == Activity.RESULT_OK) {
                         // There are no request codes
                         Intent data = result.getData();
-                        StorageUtils.CleanUpOrphans(getApplicationContext(), getFilesDir().getAbsolutePath());
                         if (data != null) {
                             if (data.getData() != null) {
                                 //Single select
@@ -181,13 +241,21 @@ public class MainActivity extends AppCompatActivity
                 });
     }
 
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        //Rotation is handled in place, the cards may need a new size
+        if (adapter != null && adapter.updateCardSize())
+            adapter.notifyItemRangeChanged(0, adapter.getItemCount());
+    }
+
     private boolean inForeground = false;
-    @SuppressLint("NotifyDataSetChanged")
     @Override
     protected void onResume() {
         super.onResume();
         WallpaperManager.getInstance().addWallpaperSetListener(this);
-        runOnUiThread(()->adapter.notifyDataSetChanged());
+        //Catch up with changes made while in the background
+        adapter.refresh();
         inForeground = true;
     }
 
@@ -249,7 +317,6 @@ public class MainActivity extends AppCompatActivity
 
     }
 
-    @SuppressLint("NotifyDataSetChanged")
     private void setupRecyclerView() {
         rv = findViewById(R.id.rv);
         adapter = new RVAdapter(context, store, PreferenceHelper.getGridLayoutColumns(context));
@@ -263,33 +330,47 @@ public class MainActivity extends AppCompatActivity
 
         adapter.setHasStableIds(true);
         rv.setAdapter(adapter);
+        adapter.refresh();
         store.addListener(this);
+        //Changes after this arrive in onStoreChanged
+        adapter.setActiveId(store.getActiveId());
         adapter.setClickListener(this);
         SwipeRefreshLayout swipeLayout = findViewById(R.id.swiperefresh);
 
         swipeLayout.setOnRefreshListener(() -> {
             //clean up missing images
-            //clear Glide cache
-            //reload from preferences
+            //invalidate thumbnails of changed images, everything else stays cached
             BackgroundExecutor.getExecutor().execute(() -> {
-                runOnUiThread(() -> {
-                    //must be run on main thread
-                    final Glide gInstance = Glide.get(this);
-                    //must be run on background thread
-                    BackgroundExecutor.getExecutor().execute(gInstance::clearDiskCache);
-                    //must be run on main thread
-                    gInstance.clearMemory();
-                });
-                for (ImageObject obj : store.getImageObjectArray())
-                    if (!StorageUtils.sourceExists(this, obj.getUri()))
-                        store.delImageObject(obj.getId());
-                //Refresh the whole list
-                runOnUiThread(() -> adapter.notifyDataSetChanged());
-                //Save after refresh -- otherwise data will be saved onPause()
-                store.saveToPrefs();
-                swipeLayout.setRefreshing(false);
+                IntegrityScan scan;
+                try {
+                    scan = IntegrityScan.scan(this, store.getImageObjectArray(), true);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    runOnUiThread(() -> swipeLayout.setRefreshing(false));
+                    return;
+                }
+                List<String> changed = scan.getChanged();
+                changed.forEach(id -> StorageUtils.removeThumbnails(this, id));
+                scan.getMissing().forEach(id -> StorageUtils.removeThumbnails(this, id));
+                //The new signature changes the Glide cache key, so the changed cards are redrawn
+                store.setSignatures(scan.getSignatures());
+                //One batched removal, a single list update; it also saves the new signatures
+                if (scan.getMissing().isEmpty())
+                    store.saveToPrefs();
+                else
+                    store.delImageObjects(scan.getMissing());
+                runOnUiThread(() -> swipeLayout.setRefreshing(false));
             });
         });
+        //Thumbnails for visible cards are generated first
+        rv.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager != null)
+                    ThumbnailQueue.getInstance().setViewport(layoutManager.findFirstVisibleItemPosition(), layoutManager.findLastVisibleItemPosition());
+            }
+        });
         new FastScrollerBuilder(rv).useMd2Style().build();
         if (preloader == null) {
             ListPreloader.PreloadSizeProvider<ImageObject> sizeProvider = new FixedPreloadSizeProvider<>(RVAdapter.getCardSize(context, PreferenceHelper.getGridLayoutColumns(context)), RVAdapter.getCardSize(context, PreferenceHelper.getGridLayoutColumns(context)));
@@ -568,12 +649,55 @@ public class MainActivity extends AppCompatActivity
             case (R.id.menu_goto):
                 runOnUiThread(() -> rv.scrollToPosition(store.getActivePos()));
                 return true;
+            case (R.id.menu_similar):
+                showSimilarImages();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
 
+    /**
+     * Show the groups of near-duplicate images in the image viewer. When the viewer is dismissed
+     * the list is scrolled to the last image viewed so it can be removed.
+     */
+    public void showSimilarImages() {
+        //Grouping walks the whole BK-tree
+        BackgroundExecutor.getExecutor().execute(() -> {
+            List<List<ImageObject>> groups = store.getSimilarImageGroups(PerceptualHash.SIMILAR_DISTANCE);
+            runOnUiThread(() -> {
+                if (!isDestroyed())
+                    showSimilarImages(groups);
+            });
+        });
+    }
+
+    private void showSimilarImages(List<List<ImageObject>> groups) {
+        if (groups.isEmpty()) {
+            Snackbar.make(constraintLayout, R.string.msg_no_similar_images, Snackbar.LENGTH_LONG)
+                    .setBackgroundTint(getColor(androidx.cardview.R.color.cardview_dark_background))
+                    .setTextColor(getColor(R.color.white))
+                    .show();
+        } else {
+            List<ImageObject> similarImages = new ArrayList<>();
+            groups.forEach(similarImages::addAll);
+            final int[] viewedPos = {0};
+            new StfalconImageViewer.Builder<>(this, similarImages, (imageView, image) -> Glide
+                    .with(context)
+                    .load(image.getUri())
+                    .fitCenter()
+                    .into(imageView))
+                    .withImageChangeListener(position -> viewedPos[0] = position)
+                    .withDismissListener(() -> {
+                        int pos = adapter.getPosition(similarImages.get(viewedPos[0]).getId());
+                        if (pos > -1)
+                            rv.scrollToPosition(pos);
+                    })
+                    .show();
+        }
+    }
+
     /**
      * Delete all images from view and from storage. Original source (from the add button)
      * is not deleted.
@@ -594,13 +718,33 @@ public class MainActivity extends AppCompatActivity
                         dialog.dismiss();
                         store.clear(false);
                         toggler.setChecked(false);
-                        StorageUtils.CleanUpOrphans(getApplicationContext(), getBaseContext().getFilesDir().getPath());
+                        store.saveToPrefs();
+                        reportReclaimedStorage(StorageCollector.collectNow(context));
                         //adapter.notifyDataSetChanged();
                     })
                     .show();
         }
     }
 
+    /**
+     * Show how much storage a collection freed once it finishes.
+     *
+     * @param collectorId the id of the StorageCollector work request
+     */
+    private void reportReclaimedStorage(UUID collectorId) {
+        WorkManager.getInstance(getApplicationContext())
+                .getWorkInfoByIdLiveData(collectorId)
+                .observe(this, workInfo -> {
+                    if (workInfo != null && workInfo.getState().equals(WorkInfo.State.SUCCEEDED)) {
+                        long reclaimed = workInfo.getOutputData().getLong(StorageCollector.RECLAIMED_BYTES, 0);
+                        Snackbar.make(constraintLayout, getString(R.string.msg_storage_reclaimed, reclaimed / 1048576f), Snackbar.LENGTH_LONG)
+                                .setBackgroundTint(getColor(androidx.cardview.R.color.cardview_dark_background))
+                                .setTextColor(getColor(R.color.white))
+                                .show();
+                    }
+                });
+    }
+
     /**
      * Initialize wallpaper toggle.
      */
@@ -655,7 +799,7 @@ public class MainActivity extends AppCompatActivity
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 final int position = viewHolder.getAbsoluteAdapterPosition();
-                final ImageObject item = adapter.getData().get(position);
+                final ImageObject item = adapter.getItem(position);
                 final int refPos = store.getReferencePosition(item.getId());
                 boolean toggled = false;
                 boolean wasActiveWallpaper = store.getActiveId().equals(item.getId());
@@ -684,7 +828,7 @@ public class MainActivity extends AppCompatActivity
                     @Override
                     public void onDismissed(Snackbar snackbar, int event) {
                         if (event != Snackbar.Callback.DISMISS_EVENT_ACTION) {
-                            StorageUtils.cleanUpImage(context.getFilesDir().getAbsolutePath(), item);
+                            PurgeQueue.enqueue(getApplicationContext(), item);
                         }
 
                     }
@@ -697,16 +841,39 @@ public class MainActivity extends AppCompatActivity
                         .show();
 
             }
+            /**
+             * The card being dragged and where it is now; the store is only changed on drop.
+             */
+            private ImageObject dragged = null;
+            private int dragPosition = -1;
+
             @Override
             public boolean onMove(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder, @NonNull RecyclerView.ViewHolder target) {
                 if (store.getSortCriteria() == ImageStore.SORT_BY_CUSTOM) {
                     int fromPosition = viewHolder.getBindingAdapterPosition();
                     int toPosition = target.getBindingAdapterPosition();
-                    store.moveImageObject(store.getImageObject(fromPosition), toPosition);
+                    if (dragged == null) {
+                        dragged = adapter.getItem(fromPosition);
+                        adapter.startDrag();
+                    }
+                    adapter.moveItem(fromPosition, toPosition);
+                    dragPosition = toPosition;
                     return true;
                 }
                 return false;
             }
+
+            @Override
+            public void clearView(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder) {
+                super.clearView(recyclerView, viewHolder);
+                if (dragged != null) {
+                    //Dropped: one move for the whole drag
+                    store.moveImageObject(dragged, dragPosition);
+                    adapter.endDrag();
+                    dragged = null;
+                    dragPosition = -1;
+                }
+            }
         };
         itemDragHelper = new ItemTouchHelper(itemMoveCallback);
         itemDragHelper.attachToRecyclerView(rv);
@@ -715,7 +882,7 @@ public class MainActivity extends AppCompatActivity
     @Override
     public void onSetWpClick(int position) {
         invalidateOptionsMenu();
-        WallpaperManager.getInstance().setSingleWallpaper(this, store.getImageObject(position).getId());
+        WallpaperManager.getInstance().setSingleWallpaper(this, adapter.getItem(position).getId());
     }
 
     @SuppressLint("NotifyDataSetChanged")
@@ -735,7 +902,7 @@ public class MainActivity extends AppCompatActivity
                 WallpaperWorker.scheduleRandomWallpaper(context);
             }
         } else if (!isloading && key.equals(getString(R.string.preference_card_stats)))
-            runOnUiThread(() -> adapter.notifyItemRangeChanged(0, store.getImageObjectArray().length));
+            runOnUiThread(() -> adapter.setShowStats(PreferenceHelper.showStats(context)));
         else if (key.equals(getString(R.string.preference_worker_last_queue))) {
             if (PreferenceHelper.isActive(context))
                 timerArc.start();
@@ -759,7 +926,7 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onImageClick(int pos, View view) {
-        new StfalconImageViewer.Builder<>(this, store.getImageObjectArray(), (imageView, image) -> Glide
+        new StfalconImageViewer.Builder<>(this, adapter.getData(), (imageView, image) -> Glide
                 .with(context)
                 .load(image.getUri())
                 .fitCenter()
@@ -771,7 +938,7 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onWallpaperSetNotFound(String id) {
-        adapter.removeItem(store.getPosition(id));
+        adapter.refresh();
         Toast.makeText(context,
                 R.string.set_wallpaper_missing_image,
                 Toast.LENGTH_SHORT).show();
@@ -832,59 +999,13 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
-    @SuppressLint("NotifyDataSetChanged")
-    @Override
-    public void onSortCriteriaChanged(int prevSortCriteria) {
-        if (prevSortCriteria != store.getSortCriteria())
-            runOnUiThread(() -> adapter.notifyDataSetChanged());
-    }
-
-    @Override
-    public void onDelete(ImageObject obj, int lastPos) {
-        if (inForeground)
-            runOnUiThread(() -> adapter.notifyItemRemoved(lastPos));
-    }
-
-    @SuppressLint("NotifyDataSetChanged")
-    @Override
-    public void onShuffle() {
-        runOnUiThread(()->adapter.notifyDataSetChanged());
-    }
-
-    @SuppressLint("NotifyDataSetChanged")
-    @Override
-    public void onClear() {
-        runOnUiThread(()->adapter.notifyDataSetChanged());
-    }
-
-    @Override
-    public void onMove(int oldPos, int newPos) {
-        runOnUiThread(()->adapter.notifyItemMoved(oldPos, newPos));
-    }
-
-    @Override
-    public void onSetActive(ImageObject activeObj, ImageObject prevObj) {
-        int prevPos = (prevObj != null)?store.getPosition(prevObj.getId()):-1;
-            int activePos = (activeObj != null)?store.getPosition(activeObj.getId()):-1;
-            if (prevPos > -1)
-                runOnUiThread(()->adapter.notifyItemChanged(prevPos));
-            if (activePos > -1)
-                runOnUiThread(()->adapter.notifyItemChanged(activePos));
-    }
-
-    @SuppressLint("NotifyDataSetChanged")
-    @Override
-    public void onAdd(ImageObject obj, int pos) {
-        // notifyDataSetChanged needed to avoid IOOBE on recyclerview
-        //   that happens on rapid adds (due to predictive animation)
-        if (inForeground)
-            runOnUiThread(()->adapter.notifyDataSetChanged());
-    }
-
-    @SuppressLint("NotifyDataSetChanged")
     @Override
-    public void onReplace() {
-        if (inForeground)
-            runOnUiThread(()->adapter.notifyDataSetChanged());
+    public void onStoreChanged(StoreChangeSet changes) {
+        // Rapid changes (e.g. an import) arrive as one change set and are shown with one diff
+        if (changes.isStructureChanged() && inForeground)
+            adapter.refresh();
+        if (changes.getActiveId() != null)
+            adapter.setActiveId(changes.getActiveId());
+        adapter.notifyItemsChanged(changes.getChangedIds());
     }
 }
\ No newline at end of file
@@ -4,10 +4,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -18,9 +22,9 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
 import androidx.constraintlayout.helper.widget.Flow;
 import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
@@ -30,31 +34,119 @@ import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.google.android.material.card.MaterialCardView;
 import com.moosedrive.wallpaperer.data.ImageObject;
 import com.moosedrive.wallpaperer.data.ImageStore;
+import com.moosedrive.wallpaperer.glide.ThumbnailModel;
 import com.moosedrive.wallpaperer.utils.BackgroundExecutor;
+import com.moosedrive.wallpaperer.utils.BlurHash;
 import com.moosedrive.wallpaperer.utils.PreferenceHelper;
+import com.moosedrive.wallpaperer.utils.StorageUtils;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import me.zhanghai.android.fastscroll.PopupTextProvider;
 
 public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> implements PopupTextProvider, ListPreloader.PreloadModelProvider<ImageObject> {
 
+    private static final int PLACEHOLDER_CACHE_SIZE = 512;
+    private static final int PLACEHOLDER_SIZE = 16;
     final ImageStore store;
     final Context context;
     private ItemClickListener clickListener;
     private final int columns;
+    private int cardSize;
+    private boolean showStats;
+    private final int defaultColor;
+    private final int activeStrokeColor;
+    private final int strokeColor;
+    private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd", Locale.getDefault())
+            .withZone(ZoneId.systemDefault());
+    /**
+     * Card text of the images by id, built in the background when a snapshot is taken so binding
+     * does no formatting. The adapter lives as long as its activity, which is recreated when the
+     * locale changes.
+     */
+    private final Map<String, DisplayModel> displayModels = new ConcurrentHashMap<>();
+    /**
+     * Decoded placeholders by BlurHash, so scrolling back and forth does not decode them again.
+     * They are decoded in the background; a card bound before its placeholder is ready is bound
+     * again once it is.
+     */
+    private final LruCache<String, Drawable> placeholders = new LruCache<>(PLACEHOLDER_CACHE_SIZE);
+    private final Set<String> pendingPlaceholders = new HashSet<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * The images on screen: an immutable snapshot of the store, replaced whenever a diff is applied.
+     */
+    private List<ImageObject> items = Collections.emptyList();
+    private int generation = 0;
+    private int appliedGeneration = 0;
+    /**
+     * The order on screen while a card is dragged, changed in place; null when not dragging.
+     */
+    private List<ImageObject> dragOverlay = null;
+    private boolean refreshDeferred = false;
+    /**
+     * The active wallpaper, kept up to date from the store's change sets.
+     */
+    private String activeId = "";
 
     public RVAdapter(Context context, ImageStore store, int columns) {
         this.store = store;
         this.context = context;
         this.columns = columns;
+        this.cardSize = getCardSize(context, columns);
+        this.showStats = PreferenceHelper.showStats(context);
+        this.defaultColor = context.getColor(androidx.cardview.R.color.cardview_dark_background);
+        this.activeStrokeColor = context.getColor(R.color.gray_400);
+        this.strokeColor = context.getColor(R.color.transparent);
+    }
+
+    /**
+     * Recompute the card size, e.g. after the screen rotated.
+     *
+     * @return true if the size changed and the cards must be bound again
+     */
+    public boolean updateCardSize() {
+        int size = getCardSize(context, columns);
+        if (size == cardSize)
+            return false;
+        cardSize = size;
+        displayModels.clear();
+        return true;
+    }
+
+    /**
+     * Set the active wallpaper, whose card is outlined. The cards are not rebound; the change set
+     * that reported it lists both cards as changed.
+     *
+     * @param activeId the active image id, empty if none
+     */
+    public void setActiveId(String activeId) {
+        this.activeId = activeId;
+    }
+
+    /**
+     * Show or hide the file details on the cards.
+     *
+     * @param showStats true to show them
+     */
+    public void setShowStats(boolean showStats) {
+        if (this.showStats != showStats) {
+            this.showStats = showStats;
+            notifyItemRangeChanged(0, getItemCount());
+        }
     }
 
     /**
@@ -65,10 +157,21 @@ public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> imple
      * @return largest of width of card based on desired columns or R.dimen.card_size_min
      */
     public static int getCardSize(Context context, int columns) {
-        //int width = Math.round(Resources.getSystem().getDisplayMetrics().widthPixels);
-        int height = Math.round(Resources.getSystem().getDisplayMetrics().heightPixels);
-        //int columns = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context).getString("preference_columns", "2"));
-        int width = Math.round(Resources.getSystem().getDisplayMetrics().widthPixels);
+        return getCardSize(context, columns,
+                Math.round(Resources.getSystem().getDisplayMetrics().widthPixels),
+                Math.round(Resources.getSystem().getDisplayMetrics().heightPixels));
+    }
+
+    /**
+     * Get the square dimension of the card given the desired number of columns, for a screen of
+     * the given size (e.g. the other orientation).
+     * @param context the context
+     * @param columns the desired number of columns
+     * @param width   the screen width
+     * @param height  the screen height
+     * @return largest of width of card based on desired columns or R.dimen.card_size_min
+     */
+    public static int getCardSize(Context context, int columns, int width, int height) {
         // Set lower limit on thumbnail size (need space for buttons and metadata text) based on display size
         if (width / columns < (int) context.getResources().getDimension(R.dimen.card_size_min))
             columns = (int) (width / context.getResources().getDimension(R.dimen.card_size_min));
@@ -83,93 +186,246 @@ public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> imple
         return new ImageHolder(v);
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.Q)
+    /**
+     * Show the current contents of the store. The difference to the list on screen is computed in
+     * the background and only the changed ranges are updated. If called again before a diff is
+     * applied, only the latest snapshot is shown, so a burst of store changes costs one update.
+     * While a card is dragged, the refresh is deferred until the drag ends.
+     * Must be called on the main thread.
+     */
+    public void refresh() {
+        if (dragOverlay != null) {
+            refreshDeferred = true;
+            return;
+        }
+        List<ImageObject> oldItems = items;
+        List<ImageObject> newItems = Collections.unmodifiableList(Arrays.asList(store.getImageObjectArray()));
+        int expected = ++generation;
+        BackgroundExecutor.getExecutor().execute(() -> {
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < newItems.size(); i++) {
+                ImageObject img = newItems.get(i);
+                ids.add(img.getId());
+                // Moved cards are not rebound; the thumbnail queue ranks them by this position
+                getDisplayModel(img).thumbnail.setPosition(i);
+            }
+            displayModels.keySet().retainAll(ids);
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new SnapshotDiff(oldItems, newItems));
+            mainHandler.post(() -> {
+                // A newer snapshot (or a move) superseded this one
+                if (expected != generation)
+                    return;
+                items = newItems;
+                appliedGeneration = expected;
+                diff.dispatchUpdatesTo(this);
+            });
+        });
+    }
+
+    /**
+     * Start dragging a card. Until endDrag, moves only change the order on screen and store
+     * changes are not shown. Must be called on the main thread.
+     */
+    public void startDrag() {
+        if (dragOverlay != null)
+            return;
+        // A diff still being computed would not match the order on screen after the drag
+        if (appliedGeneration != generation) {
+            refreshDeferred = true;
+            appliedGeneration = ++generation;
+        }
+        dragOverlay = new ArrayList<>(items);
+        items = dragOverlay;
+    }
+
+    /**
+     * Move the dragged card on screen. Must be called on the main thread, during a drag.
+     *
+     * @param fromPosition the current position
+     * @param toPosition   the new position
+     */
+    public void moveItem(int fromPosition, int toPosition) {
+        dragOverlay.add(toPosition, dragOverlay.remove(fromPosition));
+        notifyItemMoved(fromPosition, toPosition);
+    }
+
+    /**
+     * End the drag. The store should already hold the new order; any changes made to the store
+     * during the drag are shown now. Must be called on the main thread.
+     */
+    public void endDrag() {
+        if (dragOverlay == null)
+            return;
+        items = Collections.unmodifiableList(dragOverlay);
+        dragOverlay = null;
+        if (refreshDeferred) {
+            refreshDeferred = false;
+            refresh();
+        }
+    }
+
+    /**
+     * Rebind the cards of some images. Adjacent cards are updated as one range.
+     * Must be called on the main thread.
+     *
+     * @param ids the image ids, those not on screen are ignored
+     */
+    public void notifyItemsChanged(Collection<String> ids) {
+        if (ids.isEmpty())
+            return;
+        int[] positions = ids.stream().mapToInt(this::getPosition).filter(p -> p >= 0).sorted().toArray();
+        int start = 0;
+        for (int i = 1; i <= positions.length; i++) {
+            if (i == positions.length || positions[i] != positions[i - 1] + 1) {
+                notifyItemRangeChanged(positions[start], i - start);
+                start = i;
+            }
+        }
+    }
+
+    /**
+     * Gets the image shown at a position.
+     *
+     * @param position the adapter position
+     * @return the image
+     */
+    public ImageObject getItem(int position) {
+        return items.get(position);
+    }
+
+    /**
+     * Gets the position of an image on screen.
+     *
+     * @param id the image id
+     * @return the adapter position, or -1 if the image is not shown
+     */
+    public int getPosition(String id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId().equals(id))
+                return i;
+        }
+        return -1;
+    }
+
     @Override
     public void onBindViewHolder(@NonNull ImageHolder holder, int position) {
-        holder.ivBlocker.setOnClickListener(v -> {
-        });
-        final ImageObject img = store.getImageObject(position);
-        int color = img.getColor();
-        if (!img.isColorSet()) {
-            // Color isn't generated. Don't wait, but do it for next time.
-            color = context.getColor(androidx.cardview.R.color.cardview_dark_background);
-            BackgroundExecutor.getExecutor().execute(() -> img.setColor(img.getColorFromBitmap(context)));
-        }
-        if (store.getActiveId().equals(img.getId()))
-            holder.cv.setStrokeColor(context.getColor(R.color.gray_400));
-        else
-            holder.cv.setStrokeColor(context.getColor(R.color.transparent));
+        final ImageObject img = items.get(position);
+        DisplayModel model = getDisplayModel(img);
+        // Colors missing from older libraries are filled in by the ImageBackfillWorker
+        int color = (img.isColorSet()) ? img.getColor() : defaultColor;
+        holder.cv.setStrokeColor(activeId.equals(img.getId()) ? activeStrokeColor : strokeColor);
         holder.ivImage.setBackgroundColor(color);
-        String type = img.getType();
-        String name = img.getName();
-        Date date = img.getCreationDate();
-        boolean showStats = PreferenceHelper.showStats(context);
         holder.tvFileName.setVisibility((showStats) ? View.VISIBLE : View.INVISIBLE);
         holder.flowStats.setVisibility((showStats) ? View.VISIBLE : View.INVISIBLE);
         holder.flowStats.setBackgroundColor(color);
-        holder.tvFileName.setText(name.toUpperCase());
-        String sDate = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(date);
-        holder.tvDate.setText(sDate);
-        holder.tvType.setText(Html.fromHtml(type, Html.FROM_HTML_MODE_COMPACT));
-        holder.tvSize.setText(String.format(Locale.US, context.getString(R.string.file_size), img.getSize() / (1024.0 * 1024.0)));
-        int squareDimen = getCardSize(context,columns);
-        holder.itemView.getLayoutParams().width = squareDimen;
-        holder.itemView.getLayoutParams().height = squareDimen;
+        holder.tvFileName.setText(model.name);
+        holder.tvDate.setText(model.date);
+        holder.tvType.setText(model.type);
+        holder.tvSize.setText(model.size);
+        holder.itemView.getLayoutParams().width = cardSize;
+        holder.itemView.getLayoutParams().height = cardSize;
+        model.thumbnail.setPosition(position);
         Glide
                 .with(context)
-                .load(img.getThumbUri(context))
+                .load(model.thumbnail)
+                .placeholder(getPlaceholder(img))
                 .centerCrop()
-                .override(squareDimen)
-                .diskCacheStrategy(DiskCacheStrategy.RESOURCE)
+                .override(cardSize)
+                // The thumbnail pack already is the disk cache
+                .diskCacheStrategy(DiskCacheStrategy.NONE)
                 .into(holder.ivImage);
+    }
 
+    /**
+     * Gets the card text of an image, building it if it is missing or out of date.
+     *
+     * @param img the image
+     * @return the display model
+     */
+    private DisplayModel getDisplayModel(ImageObject img) {
+        DisplayModel model = displayModels.get(img.getId());
+        // A new object for the id, or a new file signature (see ThumbnailModel)
+        if (model == null || model.img != img || !Objects.equals(model.thumbnail.getSignature(), img.getSignature())) {
+            model = new DisplayModel(img,
+                    img.getName().toUpperCase(),
+                    dateFormat.format(img.getCreationDate().toInstant()),
+                    Html.fromHtml(img.getType(), Html.FROM_HTML_MODE_COMPACT),
+                    String.format(Locale.US, context.getString(R.string.file_size), img.getSize() / (1024.0 * 1024.0)),
+                    new ThumbnailModel(img, StorageUtils.getThumbnailSize(cardSize)));
+            displayModels.put(img.getId(), model);
+        }
+        return model;
+    }
 
+    /**
+     * Gets the blurred preview shown until the thumbnail of an image is loaded.
+     *
+     * @param img the image
+     * @return the preview, or null if the image has none
+     */
+    @Nullable
+    private Drawable getPlaceholder(ImageObject img) {
+        String hash = img.getPlaceholder();
+        if (hash == null || hash.isEmpty())
+            return null;
+        Drawable placeholder = placeholders.get(hash);
+        if (placeholder == null && pendingPlaceholders.add(hash)) {
+            String id = img.getId();
+            BackgroundExecutor.getExecutor().execute(() -> {
+                Bitmap bm = BlurHash.decode(hash, PLACEHOLDER_SIZE, PLACEHOLDER_SIZE);
+                mainHandler.post(() -> {
+                    pendingPlaceholders.remove(hash);
+                    if (bm != null) {
+                        placeholders.put(hash, new BitmapDrawable(context.getResources(), bm));
+                        notifyItemsChanged(Collections.singleton(id));
+                    }
+                });
+            });
+        }
+        return placeholder;
     }
 
     @Override
     public long getItemId(int position) {
-        return store.getImageObject(position).getId().hashCode();
+        return items.get(position).getId().hashCode();
     }
 
     @Override
     public int getItemCount() {
-        return store.size();
+        return items.size();
     }
 
     public void setClickListener(ItemClickListener itemClickListener) {
         this.clickListener = itemClickListener;
     }
 
-    public void removeItem(int position) {
-        notifyItemRemoved(position);
-    }
-
     public ArrayList<ImageObject> getData() {
-        return new ArrayList<>(Arrays.asList(store.getImageObjectArray()));
+        return new ArrayList<>(items);
     }
 
     @NonNull
     @Override
     public String getPopupText(int position) {
-        return (position + 1) + " of " + store.size();
+        return (position + 1) + " of " + items.size();
     }
 
     @NonNull
     @Override
     public List<ImageObject> getPreloadItems(int position) {
-        return Collections.singletonList(store.getImageObject(position));
+        ImageObject img = items.get(position);
+        getDisplayModel(img).thumbnail.setPosition(position);
+        return Collections.singletonList(img);
     }
 
     @Nullable
     @Override
     public RequestBuilder<Drawable> getPreloadRequestBuilder(@NonNull ImageObject img) {
-        int width = getCardSize(context, columns);
         //This needs to be identical (except "into") to the onBind glide builder
         return Glide.with(context)
-                .load(img.getThumbUri(context))
+                .load(getDisplayModel(img).thumbnail)
                 .centerCrop()
-                .override(width)
-                .diskCacheStrategy(DiskCacheStrategy.RESOURCE);
+                .override(cardSize)
+                .diskCacheStrategy(DiskCacheStrategy.NONE);
     }
 
     public class ImageHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
@@ -197,6 +453,8 @@ public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> imple
             ivSetWp = itemView.findViewById(R.id.iv_setWp);
             ivBlocker = itemView.findViewById(R.id.touch_blocker);
             tvSize = itemView.findViewById(R.id.tv_size);
+            ivBlocker.setOnClickListener(v -> {
+            });
             ivSetWp.setOnClickListener(this);
             ivImage.setOnClickListener(this);
             ivShare.setOnClickListener(this);
@@ -206,7 +464,7 @@ public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> imple
         @Override
         public void onClick(View view) {
             PackageManager packageManager = context.getPackageManager();
-            ImageObject img = store.getImageObject(getAbsoluteAdapterPosition());
+            ImageObject img = items.get(getAbsoluteAdapterPosition());
             if (clickListener != null && view == ivSetWp) {
                 clickListener.onSetWpClick(getAbsoluteAdapterPosition());
                 ivSetWp.startAnimation(AnimationUtils.loadAnimation(context, R.anim.anim_change_wallpaper));
@@ -230,6 +488,62 @@ public class RVAdapter extends RecyclerView.Adapter<RVAdapter.ImageHolder> imple
         }
     }
 
+    /**
+     * The formatted text and thumbnail model of a card.
+     */
+    private static class DisplayModel {
+        final ImageObject img;
+        final String name;
+        final String date;
+        final CharSequence type;
+        final String size;
+        final ThumbnailModel thumbnail;
+
+        DisplayModel(ImageObject img, String name, String date, CharSequence type, String size, ThumbnailModel thumbnail) {
+            this.img = img;
+            this.name = name;
+            this.date = date;
+            this.type = type;
+            this.size = size;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    /**
+     * Compares two snapshots. Images are the same item when their ids match; an image's own
+     * changes (e.g. becoming the active wallpaper) are notified separately, so contents only
+     * differ when the store holds a different object for the id.
+     */
+    private static class SnapshotDiff extends DiffUtil.Callback {
+        private final List<ImageObject> oldItems;
+        private final List<ImageObject> newItems;
+
+        SnapshotDiff(List<ImageObject> oldItems, List<ImageObject> newItems) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldItems.get(oldItemPosition).getId().equals(newItems.get(newItemPosition).getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldItems.get(oldItemPosition) == newItems.get(newItemPosition);
+        }
+    }
+
     public interface ItemClickListener {
         void onSetWpClick(int position);
 
@@ -157,7 +157,6 @@ public class SettingsActivity extends AppCompatActivity {
                         if (result.getResultCode() == Activity.RESULT_OK) {
                             // There are no request codes
                             Intent data = result.getData();
-                            StorageUtils.CleanUpOrphans(requireContext().getApplicationContext(), requireContext().getFilesDir().getAbsolutePath());
                             if (data != null) {
                                 if (data.getData() != null) {
                                     //Single select
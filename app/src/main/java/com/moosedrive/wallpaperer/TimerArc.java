@@ -1,6 +1,5 @@
 package com.moosedrive.wallpaperer;
 
-import android.animation.ValueAnimator;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
@@ -12,14 +11,19 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.View;
-import android.view.animation.LinearInterpolator;
 
 import com.moosedrive.wallpaperer.utils.PreferenceHelper;
+import com.moosedrive.wallpaperer.utils.PreferenceSnapshot;
 
-import java.util.Date;
-
+/**
+ * Countdown ring to the next scheduled wallpaper change.
+ * The ring is redrawn on a timer whose interval is the time it takes the arc to move about one
+ * pixel, and only while the view is visible, rather than on every frame.
+ */
 public class TimerArc extends View {
     private static final int ARC_START_ANGLE = 270; // 12 o'clock
+    private static final long MIN_TICK_MILLIS = 100;
+    private static final long MAX_TICK_MILLIS = 60 * 1000;
 
     private static final float THICKNESS_SCALE = 0.5f;
     private final Paint mCirclePaint;
@@ -30,7 +34,14 @@ public class TimerArc extends View {
     private RectF mCircleInnerBounds;
     private float mCircleSweepAngle;
 
-    private ValueAnimator mTimerAnimator;
+    private boolean mRunning = false;
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (updateProgress())
+                postDelayed(this, getTickInterval());
+        }
+    };
 
     public TimerArc(Context context) {
         this(context, null);
@@ -95,29 +106,65 @@ public class TimerArc extends View {
 
     public void start() {
         stop();
-        long now = new Date().getTime();
-        mTimerAnimator = ValueAnimator.ofFloat(0f, 1f);
-        long timeToGo = PreferenceHelper.getScheduledWallpaperChange(getContext()) - now;
-        mTimerAnimator.setDuration((timeToGo > 0) ? timeToGo : 0);
-        mTimerAnimator.setInterpolator(new LinearInterpolator());
-        mTimerAnimator.addUpdateListener(animation -> {
-            long now1 = new Date().getTime();
-            long timeToGoLocal = (PreferenceHelper.getScheduledWallpaperChange(getContext()) - now1);
-            long wallpaperDelay = PreferenceHelper.getWallpaperDelay(getContext());
-            drawProgress((timeToGoLocal <= wallpaperDelay && timeToGoLocal >= 0) ? timeToGoLocal / (float) wallpaperDelay * 360 : 0);
-        });
-        mTimerAnimator.start();
+        mRunning = true;
+        if (isShown())
+            mTick.run();
     }
 
     public void stop() {
-        if (mTimerAnimator != null && mTimerAnimator.isRunning()) {
-            mTimerAnimator.cancel();
-            mTimerAnimator = null;
-
+        removeCallbacks(mTick);
+        if (mRunning) {
+            mRunning = false;
             drawProgress(0);
         }
     }
 
+    @Override
+    public void onVisibilityAggregated(boolean isVisible) {
+        super.onVisibilityAggregated(isVisible);
+        // Nothing to draw while hidden; catch up as soon as the ring is shown again
+        removeCallbacks(mTick);
+        if (isVisible && mRunning)
+            mTick.run();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mTick);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Redraw the arc if it moved a visible amount since it was last drawn.
+     *
+     * @return true while the countdown is still running
+     */
+    private boolean updateProgress() {
+        PreferenceSnapshot prefs = PreferenceHelper.getSnapshot(getContext());
+        long timeToGo = prefs.scheduledWallpaperChange - System.currentTimeMillis();
+        long wallpaperDelay = prefs.wallpaperDelay;
+        float angle = (timeToGo <= wallpaperDelay && timeToGo >= 0) ? timeToGo / (float) wallpaperDelay * 360 : 0;
+        if (Math.abs(angle - mCircleSweepAngle) >= getPixelAngle() || (angle == 0 && mCircleSweepAngle != 0))
+            drawProgress(angle);
+        return timeToGo > 0;
+    }
+
+    /**
+     * Gets the angle that moves the end of the arc by about one pixel.
+     */
+    private float getPixelAngle() {
+        return (getWidth() > 0) ? (float) (360 / (Math.PI * getWidth())) : 1f;
+    }
+
+    /**
+     * Gets the time the arc takes to move by about one pixel.
+     */
+    private long getTickInterval() {
+        long wallpaperDelay = PreferenceHelper.getSnapshot(getContext()).wallpaperDelay;
+        long interval = (long) (wallpaperDelay * getPixelAngle() / 360);
+        return Math.max(MIN_TICK_MILLIS, Math.min(MAX_TICK_MILLIS, interval));
+    }
+
     private void drawProgress(float progress) {
         mCircleSweepAngle = progress;
 
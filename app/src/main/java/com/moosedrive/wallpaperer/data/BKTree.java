@@ -0,0 +1,114 @@
+package com.moosedrive.wallpaperer.data;
+
+import com.moosedrive.wallpaperer.utils.PerceptualHash;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Burkhard-Keller tree of perceptual hashes, used to find Hamming-near neighbours without
+ * comparing against every image in the library.
+ * Each node holds the ids of all images that share its hash. Removing an id leaves the node in
+ * place (it still routes searches), so removal never requires rebuilding the tree.
+ */
+class BKTree {
+    private Node root;
+
+    /**
+     * Add an image id under its hash.
+     *
+     * @param hash the perceptual hash
+     * @param id   the ImageObject id
+     */
+    void add(long hash, String id) {
+        if (root == null) {
+            root = new Node(hash);
+            root.ids.add(id);
+            return;
+        }
+        Node node = root;
+        while (true) {
+            int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.ids.add(id);
+                return;
+            }
+            Node child = node.children.get(distance);
+            if (child == null) {
+                child = new Node(hash);
+                child.ids.add(id);
+                node.children.put(distance, child);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Remove an image id from its hash.
+     *
+     * @param hash the perceptual hash the id was added with
+     * @param id   the ImageObject id
+     */
+    void remove(long hash, String id) {
+        Node node = root;
+        while (node != null) {
+            int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.ids.remove(id);
+                return;
+            }
+            node = node.children.get(distance);
+        }
+    }
+
+    /**
+     * Find all ids whose hash is within maxDistance of the given hash.
+     *
+     * @param hash        the perceptual hash to search for
+     * @param maxDistance the largest Hamming distance to include
+     * @return matching ids, empty if none
+     */
+    List<String> search(long hash, int maxDistance) {
+        List<String> results = new ArrayList<>();
+        if (root == null)
+            return results;
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance <= maxDistance)
+                results.addAll(node.ids);
+            // Triangle inequality: only children within [d - max, d + max] can hold matches
+            for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                if (Math.abs(child.getKey() - distance) <= maxDistance)
+                    pending.push(child.getValue());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Remove everything from the tree.
+     */
+    void clear() {
+        root = null;
+    }
+
+    private static class Node {
+        final long hash;
+        final Set<String> ids = new HashSet<>();
+        final Map<Integer, Node> children = new HashMap<>();
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+    }
+}
@@ -2,24 +2,28 @@ package com.moosedrive.wallpaperer.data;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.provider.MediaStore;
 
 import androidx.palette.graphics.Palette;
 
+import com.moosedrive.wallpaperer.utils.BlurHash;
+import com.moosedrive.wallpaperer.utils.PerceptualHash;
 import com.moosedrive.wallpaperer.utils.StorageUtils;
+import com.moosedrive.wallpaperer.utils.ThumbnailQueue;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * The type Image object.
  */
 public class ImageObject {
-    private static final ThreadPoolExecutor tpe = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+    /**
+     * Palette works on a copy of the bitmap scaled down to this many pixels.
+     */
+    private static final int PALETTE_AREA = 64 * 64;
     private final String id;
     private final String name;
 
@@ -32,8 +36,6 @@ public class ImageObject {
     private final String type;
     private final Date addedDate;
     private final Date creationDate;
-    private boolean isGenerating;
-    private Uri thumbUri;
 
     public int getColor() {
         return color;
@@ -51,6 +53,122 @@ public class ImageObject {
     private int color;
     private boolean isColorSet = false;
 
+    /**
+     * Gets the perceptual hash of the image (see {@link PerceptualHash}).
+     *
+     * @return the 64-bit hash, only meaningful if isPerceptualHashSet()
+     */
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    public void setPerceptualHash(long perceptualHash) {
+        this.perceptualHash = perceptualHash;
+        this.isPerceptualHashSet = true;
+    }
+
+    public boolean isPerceptualHashSet() {
+        return isPerceptualHashSet;
+    }
+
+    private long perceptualHash;
+    private boolean isPerceptualHashSet = false;
+
+    /**
+     * Gets the cheap content fingerprint of the original source (see StorageUtils.getFingerprint).
+     *
+     * @return the fingerprint, null if not computed yet, or empty if it cannot be known
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    private String fingerprint;
+
+    /**
+     * Gets the BlurHash of the image, shown while its thumbnail loads.
+     *
+     * @return the hash, empty if the image could not be decoded, or null if unknown
+     */
+    public String getPlaceholder() {
+        return placeholder;
+    }
+
+    public void setPlaceholder(String placeholder) {
+        this.placeholder = placeholder;
+    }
+
+    private String placeholder;
+
+    /**
+     * Gets the signature of the stored file when its thumbnails were made (see
+     * StorageUtils.getFileSignature).
+     *
+     * @return the signature, or null if unknown
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    public void setSignature(String signature) {
+        this.signature = signature;
+    }
+
+    private String signature;
+
+    /**
+     * Gets the content hash of the stored file, when it differs from the id (the hash of the
+     * original source, e.g. because the image was recompressed at import).
+     *
+     * @return the hash, or null if the stored file hashes to the id or has not been checked yet
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    private String checksum;
+
+    /**
+     * Checks if the stored file failed verification (see ContentScrubber). Damaged images are
+     * skipped by the wallpaper rotation.
+     *
+     * @return true if the stored file is damaged
+     */
+    public boolean isDamaged() {
+        return isDamaged;
+    }
+
+    public void setDamaged(boolean damaged) {
+        isDamaged = damaged;
+    }
+
+    private boolean isDamaged = false;
+
+    /**
+     * Checks if the source was not found by the last integrity scan (see IntegrityScan). Missing
+     * images are skipped by the wallpaper rotation. Not saved: every start scans again, so an
+     * image whose file reappears is used again.
+     *
+     * @return true if the source is missing
+     */
+    public boolean isMissing() {
+        return isMissing;
+    }
+
+    public void setMissing(boolean missing) {
+        isMissing = missing;
+    }
+
+    private boolean isMissing = false;
+
     /**
      * Instantiates a new Image object.
      *
@@ -70,26 +188,30 @@ public class ImageObject {
         this.type = type;
         this.addedDate = addedDate;
         this.creationDate = creationDate;
-        this.thumbUri = null;
-        this.isGenerating = false;
         this.color = -1;
     }
 
-    @SuppressWarnings("unused")
-    public Uri getThumbUri(Context context) {
-        if (thumbUri == null) {
-            if (!isGenerating)
-                generateThumbnail(context);
-            return uri;
-        }
-        return thumbUri;
-    }
-
+    /**
+     * Make sure the thumbnail of this image is in the ThumbnailPack, in the background (behind any
+     * thumbnails the grid is waiting for).
+     *
+     * @param context the context
+     */
     public void generateThumbnail(Context context) {
-        isGenerating = true;
-        tpe.submit(() -> {
-            thumbUri = StorageUtils.getThumbnailUri(context, this);
-            isGenerating = false;
+        ThumbnailQueue.getInstance().submit(context, id, uri, StorageUtils.BASE_THUMBNAIL_SIZE, () -> -1, thumbnail -> {
+            // Images restored from older backups are hashed and colored from their thumbnail
+            if (thumbnail != null && (!isPerceptualHashSet || !isColorSet || placeholder == null)) {
+                Bitmap bm = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                if (bm != null) {
+                    ImageStore store = ImageStore.getInstance(context);
+                    if (!isPerceptualHashSet)
+                        store.setPerceptualHash(this, PerceptualHash.dHash(bm));
+                    if (!isColorSet)
+                        store.setColor(this, getColorFromBitmap(context, bm));
+                    if (placeholder == null)
+                        store.setPlaceholder(this, BlurHash.encode(bm));
+                }
+            }
         });
     }
 
@@ -149,20 +271,14 @@ public class ImageObject {
     }
 
     /**
-     * Generates a dominant color from the Image associated with this ImageObject.
+     * Generates a dominant color from a small bitmap of an image, such as its thumbnail.
      *
      * @param context The application context
+     * @param bm      The bitmap
      * @return Packed int color
      */
-    public int getColorFromBitmap(Context context) {
-        Bitmap bm;
-        Uri colorUri = (thumbUri != null)?this.thumbUri:this.uri;
-        try {
-            bm = MediaStore.Images.Media.getBitmap(context.getContentResolver(), colorUri);
-        } catch (IOException e) {
-            return context.getColor(androidx.cardview.R.color.cardview_dark_background);
-        }
-        Palette p = Palette.from(bm).generate();
+    public static int getColorFromBitmap(Context context, Bitmap bm) {
+        Palette p = Palette.from(bm).resizeBitmapArea(PALETTE_AREA).generate();
         return p.getDarkMutedColor(context.getColor(androidx.cardview.R.color.cardview_dark_background));
     }
 
@@ -3,18 +3,20 @@ package com.moosedrive.wallpaperer.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 
 import androidx.annotation.NonNull;
 
 import com.moosedrive.wallpaperer.R;
+import com.moosedrive.wallpaperer.utils.BackgroundExecutor;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -25,12 +27,14 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 /**
  * The type Image store.
@@ -56,13 +60,29 @@ public class ImageStore {
      * The constant SORT_DEFAULT.
      */
     public static final int SORT_DEFAULT = SORT_BY_CUSTOM;
+    /**
+     * Records decoded before the first batch is added to the store by loadAsync; enough cards to
+     * fill a screen.
+     */
+    private static final int FIRST_PAGE_SIZE = 48;
     private static ImageStore store = null;
     private final HashMap<String, ImageObject> referenceImages;
     private final List<ImageObject> orderedImages;
     private final List<TreeSet<ImageObject>> sortedImages;
-    private final Set<ImageStoreListener> listeners = new HashSet<>();
+    private final BKTree similarImages;
+    private final HashMap<String, Set<String>> fingerprints;
+    private final BKTree pendingImports = new BKTree();
+    private int pendingImportCount = 0;
+    private int unfingerprinted = 0;
+    private final ReferenceCounts fileReferences;
+    private final ReferenceCounts reservedFiles = new ReferenceCounts();
+    private final StoreEventDispatcher dispatcher = new StoreEventDispatcher();
     private int sortCriteria = SORT_BY_CUSTOM;
     private String lastWallpaperId = "";
+    private boolean loaded = false;
+    private boolean loading = false;
+    private boolean saveDeferred = false;
+    private final List<Runnable> loadCallbacks = new ArrayList<>();
     private final Context context;
     private ImageStore(Context context) {
         this.context = context.getApplicationContext();
@@ -87,6 +107,12 @@ public class ImageStore {
                 .thenComparing(ImageObject::getName)
                 .thenComparing(ImageObject::getCreationDate)
                 .thenComparing(ImageObject::getId)));
+        // Perceptual hash index for near-duplicate lookups
+        similarImages = new BKTree();
+        // Source fingerprints of the images, for the cheap "is this new?" check on import
+        fingerprints = new HashMap<>();
+        // Reference counts of the stored image files, keyed by absolute path
+        fileReferences = new ReferenceCounts();
     }
 
     /**
@@ -122,6 +148,18 @@ public class ImageStore {
                 imageJson.put("date", io.getCreationDate().getTime());
                 imageJson.put("added_date", io.getAddedDate().getTime());
                 imageJson.put("color", io.getColor());
+                if (io.isPerceptualHashSet())
+                    imageJson.put("phash", io.getPerceptualHash());
+                if (io.getFingerprint() != null)
+                    imageJson.put("fingerprint", io.getFingerprint());
+                if (io.getPlaceholder() != null)
+                    imageJson.put("placeholder", io.getPlaceholder());
+                if (io.getSignature() != null)
+                    imageJson.put("signature", io.getSignature());
+                if (io.getChecksum() != null)
+                    imageJson.put("checksum", io.getChecksum());
+                if (io.isDamaged())
+                    imageJson.put("damaged", true);
                 imageArray.put(imageJson);
             } catch (JSONException e) {
                 e.printStackTrace();
@@ -132,31 +170,21 @@ public class ImageStore {
 
     /**
      * Parse json array linked list.
+     * No file is touched: a record whose file is missing is still loaded (see setMissing), and a
+     * malformed record is skipped without affecting the others.
      *
-     * @param context    the context
      * @param imageArray the image array
-     * @param ignoreUri  the ignore uri
      * @return the linked list
-     * @throws JSONException the json exception
      */
-    public static LinkedList<ImageObject> parseJsonArray(Context context, JSONArray imageArray, boolean ignoreUri) throws JSONException {
+    public static LinkedList<ImageObject> parseJsonArray(JSONArray imageArray) {
+        return parseJsonArray(imageArray, 0, imageArray.length());
+    }
+
+    private static LinkedList<ImageObject> parseJsonArray(JSONArray imageArray, int start, int end) {
         LinkedList<ImageObject> loadedImgs = new LinkedList<>();
-        for (int i = 0; i < imageArray.length(); i++) {
-            Uri uri = Uri.parse(imageArray.getJSONObject(i).getString("uri"));
-            if (!ignoreUri) {
-                try (ParcelFileDescriptor ignored = context.getContentResolver().openFileDescriptor(uri, "r")) {
-                    //noinspection unused
-                    int x = 0; //ignore
-                } catch (FileNotFoundException e) {
-                    System.out.println("ERROR: updateFromPrefs: File no longer exists. " + uri.toString());
-                    e.printStackTrace();
-                    return loadedImgs;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return loadedImgs;
-                }
-            }
+        for (int i = start; i < end; i++) {
             try {
+                Uri uri = Uri.parse(imageArray.getJSONObject(i).getString("uri"));
                 Date addedDate = (imageArray.getJSONObject(i).has("added_date"))
                         ? new Date(imageArray.getJSONObject(i).getLong("added_date"))
                         : new Date();
@@ -170,7 +198,21 @@ public class ImageStore {
                         imageArray.getJSONObject(i).getString("type"),
                         addedDate,
                         creationDate);
-                io.setColor(imageArray.getJSONObject(i).getInt("color"));
+                // -1 is saved for images whose color was never computed
+                int color = imageArray.getJSONObject(i).optInt("color", -1);
+                if (color != -1)
+                    io.setColor(color);
+                if (imageArray.getJSONObject(i).has("phash"))
+                    io.setPerceptualHash(imageArray.getJSONObject(i).getLong("phash"));
+                if (imageArray.getJSONObject(i).has("fingerprint"))
+                    io.setFingerprint(imageArray.getJSONObject(i).getString("fingerprint"));
+                if (imageArray.getJSONObject(i).has("placeholder"))
+                    io.setPlaceholder(imageArray.getJSONObject(i).getString("placeholder"));
+                if (imageArray.getJSONObject(i).has("signature"))
+                    io.setSignature(imageArray.getJSONObject(i).getString("signature"));
+                if (imageArray.getJSONObject(i).has("checksum"))
+                    io.setChecksum(imageArray.getJSONObject(i).getString("checksum"));
+                io.setDamaged(imageArray.getJSONObject(i).optBoolean("damaged", false));
                 loadedImgs.add(io);
             } catch (NoSuchAlgorithmException | JSONException | IOException e) {
                 e.printStackTrace();
@@ -211,11 +253,17 @@ public class ImageStore {
         if (listLength == 1)
             nextImageObject = getImageObject(0);
         else if (listLength > 1) {
+            ImageObject[] images = getImageObjectArray();
             int startPos = getActivePos();
-            if (startPos == -1 || startPos == listLength - 1)
-                nextImageObject = getImageObject(0);
-            else
-                nextImageObject = getImageObject(startPos + 1);
+            // Damaged and missing images are skipped, unless there is nothing else
+            for (int i = 1; i <= listLength; i++) {
+                ImageObject candidate = images[(startPos + i) % listLength];
+                boolean usable = !candidate.isDamaged() && !candidate.isMissing();
+                if (nextImageObject == null || usable)
+                    nextImageObject = candidate;
+                if (usable)
+                    break;
+            }
         }
         setActive((nextImageObject != null)?nextImageObject.getId():"");
         return nextImageObject;
@@ -230,10 +278,7 @@ public class ImageStore {
         if (!this.lastWallpaperId.equals(id)) {
             String prevId = this.lastWallpaperId;
             this.lastWallpaperId = id;
-            listeners
-                    .stream()
-                    .filter(Objects::nonNull)
-                    .forEach(listener -> listener.onSetActive(getImageObject(this.lastWallpaperId), getImageObject(prevId)));
+            dispatcher.activeChanged(prevId, id);
         }
     }
 
@@ -247,16 +292,18 @@ public class ImageStore {
             orderedImages.remove(swapImage);
             orderedImages.add(0, swapImage);
         }
-        listeners
-                .stream()
-                .filter(Objects::nonNull)
-                .forEach(ImageStoreListener::onShuffle);
+        dispatcher.structureChanged();
     }
 
     /**
      * Save to prefs.
      */
     public synchronized void saveToPrefs() {
+        // A partly loaded library must not overwrite the saved one
+        if (loading) {
+            saveDeferred = true;
+            return;
+        }
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         SharedPreferences.Editor edit = prefs.edit();
         JSONArray imageArray = imageObjectsToJson(orderedImages);
@@ -276,13 +323,179 @@ public class ImageStore {
         LinkedList<ImageObject> loadedImgs = new LinkedList<>();
         try {
             JSONArray imageArray = new JSONArray(prefs.getString("sources", "[]"));
-            loadedImgs = parseJsonArray(context, imageArray, false);
+            loadedImgs = parseJsonArray(imageArray);
         } catch (JSONException e) {
             e.printStackTrace();
         }
-        replace(loadedImgs);
+        // Just loaded, nothing to save
+        apply(edit().clear().addAll(loadedImgs).ops, false);
         setActive(prefs.getString(context.getString(R.string.last_wallpaper), ""));
         setSortCriteria(prefs.getInt("sort", SORT_DEFAULT));
+        loaded = true;
+    }
+
+    /**
+     * Load from prefs in the background, unless the store is already loaded or loading.
+     * The first page of records is added as soon as it is decoded, so the first screen of cards
+     * can be shown while the rest of the library loads. Saves requested in the meantime are held
+     * until the load completes.
+     *
+     * @param context  the context
+     * @param onLoaded run on the main thread once the whole library is loaded, may be null
+     */
+    public void loadAsync(Context context, Runnable onLoaded) {
+        synchronized (this) {
+            if (onLoaded != null)
+                loadCallbacks.add(onLoaded);
+            if (loading)
+                return;
+            if (loaded) {
+                finishLoad();
+                return;
+            }
+            loading = true;
+        }
+        Context mContext = context.getApplicationContext();
+        BackgroundExecutor.getExecutor().execute(() -> {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            try {
+                setSortCriteria(prefs.getInt("sort", SORT_DEFAULT));
+                JSONArray imageArray = new JSONArray(prefs.getString("sources", "[]"));
+                int firstPage = Math.min(FIRST_PAGE_SIZE, imageArray.length());
+                apply(edit().addAll(parseJsonArray(imageArray, 0, firstPage)).ops, false);
+                apply(edit().addAll(parseJsonArray(imageArray, firstPage, imageArray.length())).ops, false);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    // Unless a wallpaper was set while loading
+                    if (lastWallpaperId.isEmpty())
+                        setActive(prefs.getString(mContext.getString(R.string.last_wallpaper), ""));
+                    loading = false;
+                    loaded = true;
+                    if (saveDeferred) {
+                        saveDeferred = false;
+                        saveToPrefs();
+                    }
+                    notifyAll();
+                    finishLoad();
+                }
+            }
+        });
+    }
+
+    /**
+     * Load from prefs now, unless the store is already loaded. Waits for a load in progress.
+     * Must not be called on the main thread.
+     *
+     * @param context the context
+     */
+    public synchronized void ensureLoaded(Context context) {
+        while (loading) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (!loaded)
+            updateFromPrefs(context);
+    }
+
+    /**
+     * Flag the images whose source is missing as one change, and clear the flag of all others.
+     * The library is loaded without checking any file, so missing files are found afterwards
+     * (see IntegrityScan) and flagged in bulk; activateNext skips them. Unlike the damaged flag
+     * this is not saved, so an image whose file reappears is used again after the next scan.
+     *
+     * @param ids the ids of the missing images
+     */
+    public synchronized void setMissing(Collection<String> ids) {
+        Set<String> missing = new HashSet<>(ids);
+        referenceImages.forEach((id, img) -> {
+            if (img.isMissing() != missing.contains(id)) {
+                img.setMissing(missing.contains(id));
+                dispatcher.itemChanged(id);
+            }
+        });
+    }
+
+    /**
+     * Sets or clears the damaged flag of an image, e.g. after its content was verified.
+     *
+     * @param img     the image
+     * @param damaged true if the content could not be verified
+     */
+    public synchronized void setDamaged(ImageObject img, boolean damaged) {
+        if (img.isDamaged() != damaged) {
+            img.setDamaged(damaged);
+            dispatcher.itemChanged(img.getId());
+        }
+    }
+
+    /**
+     * Sets the average color of an image, shown behind its card until the thumbnail is loaded.
+     *
+     * @param img   the image
+     * @param color the color
+     */
+    public synchronized void setColor(ImageObject img, int color) {
+        img.setColor(color);
+        dispatcher.itemChanged(img.getId());
+    }
+
+    /**
+     * Sets the BlurHash placeholder of an image, shown in its card until the thumbnail is loaded.
+     *
+     * @param img         the image
+     * @param placeholder the BlurHash, empty if there is none
+     */
+    public synchronized void setPlaceholder(ImageObject img, String placeholder) {
+        img.setPlaceholder(placeholder);
+        dispatcher.itemChanged(img.getId());
+    }
+
+    /**
+     * Sets the checksum a recompressed image is verified against.
+     *
+     * @param img      the image
+     * @param checksum the checksum of the stored file
+     */
+    public synchronized void setChecksum(ImageObject img, String checksum) {
+        img.setChecksum(checksum);
+    }
+
+    /**
+     * Sets the file signatures found by a rescan (see IntegrityScan) as one change. The cards of
+     * images whose signature changed are redrawn with the new thumbnail.
+     *
+     * @param signatures the new signatures by image id
+     */
+    public synchronized void setSignatures(Map<String, String> signatures) {
+        signatures.forEach((id, signature) -> {
+            ImageObject img = referenceImages.get(id);
+            if (img != null && !signature.equals(img.getSignature())) {
+                img.setSignature(signature);
+                dispatcher.itemChanged(id);
+            }
+        });
+    }
+
+    /**
+     * Checks if the whole library has been loaded.
+     *
+     * @return true once loaded
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    private synchronized void finishLoad() {
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        loadCallbacks.forEach(mainHandler::post);
+        loadCallbacks.clear();
     }
 
     /**
@@ -316,11 +529,9 @@ public class ImageStore {
             if (index < 0 || index > orderedImages.size())
                 index = orderedImages.size();
             orderedImages.add(index, imgTry);
-            sortedImages.forEach(imgarray -> imgarray.add(imgTry));
+            index(imgTry);
             if (updateView)
-                listeners.stream()
-                    .filter(Objects::nonNull)
-                    .forEach(listener -> listener.onAdd(imgTry, getPosition(imgTry.getId())));
+                dispatcher.structureChanged();
         }
     }
 
@@ -330,19 +541,181 @@ public class ImageStore {
      * @param id the id
      */
     public synchronized void delImageObject(String id) {
+        delImageObject(id, true);
+    }
+
+    /**
+     * Delete several image objects as one change (see Transaction).
+     *
+     * @param ids the ids
+     */
+    public synchronized void delImageObjects(Collection<String> ids) {
+        if (ids.isEmpty())
+            return;
+        Transaction transaction = edit();
+        ids.forEach(transaction::delete);
+        transaction.commit();
+    }
+
+    private synchronized void delImageObject(String id, boolean updateView) {
         ImageObject deadImgWalking = referenceImages.get(id);
         if (deadImgWalking != null) {
-            int pos = getPosition(id);
             referenceImages.remove(id);
             orderedImages.remove(deadImgWalking);
-            sortedImages.forEach(imgArray -> imgArray.remove(deadImgWalking));
+            unindex(deadImgWalking);
             if (getActiveId().equals(deadImgWalking.getId())) {
                 setActive("");
             }
-            listeners
-                    .stream()
-                    .filter(Objects::nonNull)
-                    .forEach(listener -> listener.onDelete(deadImgWalking, pos));
+            if (updateView)
+                dispatcher.structureChanged();
+        }
+    }
+
+    /**
+     * Add an image to the sorted sets and lookup indices.
+     */
+    private void index(ImageObject img) {
+        sortedImages.forEach(imgArray -> imgArray.add(img));
+        if (img.isPerceptualHashSet())
+            similarImages.add(img.getPerceptualHash(), img.getId());
+        indexFingerprint(img);
+        addFileReference(img.getUri());
+    }
+
+    /**
+     * Remove an image from the sorted sets and lookup indices.
+     */
+    private void unindex(ImageObject img) {
+        sortedImages.forEach(imgArray -> imgArray.remove(img));
+        if (img.isPerceptualHashSet())
+            similarImages.remove(img.getPerceptualHash(), img.getId());
+        unindexFingerprint(img);
+        removeFileReference(img.getUri());
+    }
+
+    private void indexFingerprint(ImageObject img) {
+        if (img.getFingerprint() == null || img.getFingerprint().isEmpty())
+            unfingerprinted++;
+        else
+            fingerprints.computeIfAbsent(img.getFingerprint(), k -> new HashSet<>()).add(img.getId());
+    }
+
+    private void unindexFingerprint(ImageObject img) {
+        if (img.getFingerprint() == null || img.getFingerprint().isEmpty()) {
+            unfingerprinted--;
+        } else {
+            Set<String> ids = fingerprints.get(img.getFingerprint());
+            if (ids != null && ids.remove(img.getId()) && ids.isEmpty())
+                fingerprints.remove(img.getFingerprint());
+        }
+    }
+
+    /**
+     * Start a batch of changes. Nothing changes until the transaction is committed.
+     *
+     * @return the transaction
+     */
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    /**
+     * Apply a batch of changes. The indices are updated once, for the whole batch: image by image
+     * for small batches, rebuilt from scratch when a large part of the store changed.
+     *
+     * @param ops     the changes, in order
+     * @param persist save the store afterwards
+     */
+    private synchronized void apply(List<Op> ops, boolean persist) {
+        if (ops.isEmpty())
+            return;
+        Set<ImageObject> before = Collections.newSetFromMap(new IdentityHashMap<>());
+        before.addAll(referenceImages.values());
+        List<ImageObject> ordered = new ArrayList<>(orderedImages);
+        replay(ops, referenceImages, ordered);
+        orderedImages.clear();
+        orderedImages.addAll(ordered);
+
+        Set<ImageObject> after = Collections.newSetFromMap(new IdentityHashMap<>());
+        after.addAll(referenceImages.values());
+        List<ImageObject> removed = before.stream().filter(img -> !after.contains(img)).collect(Collectors.toList());
+        List<ImageObject> added = after.stream().filter(img -> !before.contains(img)).collect(Collectors.toList());
+        if ((removed.size() + added.size()) * 4 > referenceImages.size()) {
+            sortedImages.forEach(TreeSet::clear);
+            similarImages.clear();
+            fingerprints.clear();
+            unfingerprinted = 0;
+            fileReferences.clear();
+            referenceImages.values().forEach(this::index);
+        } else {
+            removed.forEach(this::unindex);
+            added.forEach(this::index);
+        }
+        if (!lastWallpaperId.isEmpty() && !referenceImages.containsKey(lastWallpaperId))
+            setActive("");
+        if (persist)
+            saveToPrefs();
+        dispatcher.structureChanged();
+    }
+
+    /**
+     * Replay a batch of changes on the images and the custom order, in the order they were made.
+     * Only the images and the order change; the indices are left to the caller.
+     *
+     * @param ops     the changes, in order
+     * @param images  the images by id
+     * @param ordered the custom order
+     */
+    static void replay(List<Op> ops, Map<String, ImageObject> images, List<ImageObject> ordered) {
+        // Deletions are only removed from the ordered list when a position is needed
+        Set<ImageObject> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Op op : ops) {
+            switch (op.type) {
+                case Op.ADD: {
+                    ImageObject prev = images.put(op.img.getId(), op.img);
+                    if (prev == op.img)
+                        break;
+                    if (prev != null)
+                        dropped.add(prev);
+                    if (dropped.contains(op.img))
+                        compact(ordered, dropped);
+                    if (op.position < 0 || op.position > ordered.size()) {
+                        ordered.add(op.img);
+                    } else {
+                        compact(ordered, dropped);
+                        ordered.add(Math.min(op.position, ordered.size()), op.img);
+                    }
+                    break;
+                }
+                case Op.DELETE: {
+                    ImageObject dead = images.remove(op.id);
+                    if (dead != null)
+                        dropped.add(dead);
+                    break;
+                }
+                case Op.MOVE: {
+                    ImageObject moving = images.get(op.id);
+                    if (moving == null)
+                        break;
+                    compact(ordered, dropped);
+                    ordered.remove(moving);
+                    ordered.add(Math.max(0, Math.min(op.position, ordered.size())), moving);
+                    break;
+                }
+                case Op.CLEAR:
+                    images.clear();
+                    ordered.clear();
+                    dropped.clear();
+                    break;
+            }
+        }
+        compact(ordered, dropped);
+    }
+
+    private static void compact(List<ImageObject> ordered, Set<ImageObject> dropped) {
+        if (!dropped.isEmpty()) {
+            ordered.removeIf(dropped::contains);
+            dropped.clear();
         }
     }
 
@@ -356,6 +729,221 @@ public class ImageStore {
         return referenceImages.get(id);
     }
 
+    /**
+     * Checks if any image in the store was imported from a source with this fingerprint.
+     * A false result proves the source is not in the store, unless hasUnfingerprinted(); a true
+     * result must be confirmed with the full content hash.
+     *
+     * @param fingerprint the source fingerprint
+     * @return true if the fingerprint is known
+     */
+    public synchronized boolean hasFingerprint(String fingerprint) {
+        return fingerprints.containsKey(fingerprint);
+    }
+
+    /**
+     * Checks if the store holds images without a source fingerprint: imported before fingerprints
+     * existed and not backfilled yet (see ImageBackfillWorker), or recompressed, so the source
+     * fingerprint cannot be recovered. A missing fingerprint proves nothing while there are any.
+     *
+     * @return true if some images have no fingerprint
+     */
+    public synchronized boolean hasUnfingerprinted() {
+        return unfingerprinted > 0;
+    }
+
+    /**
+     * Sets the source fingerprint of an image and updates the fingerprint index.
+     *
+     * @param img         the image
+     * @param fingerprint the fingerprint, empty if it cannot be known
+     */
+    public synchronized void setFingerprint(ImageObject img, String fingerprint) {
+        boolean indexed = referenceImages.get(img.getId()) == img;
+        if (indexed)
+            unindexFingerprint(img);
+        img.setFingerprint(fingerprint);
+        if (indexed)
+            indexFingerprint(img);
+    }
+
+    /**
+     * Checks if a stored file is referenced by any image in the store. Unreferenced files in the
+     * storage folders are safe to delete.
+     *
+     * @param file a stored image file
+     * @return true if the file is in use
+     */
+    public synchronized boolean isFileReferenced(File file) {
+        return fileReferences.contains(file.getAbsolutePath()) || reservedFiles.contains(file.getAbsolutePath());
+    }
+
+    /**
+     * Delete a stored file unless an image in the store references it or an import has reserved
+     * it. Checking and deleting is one step, so an import of the same content cannot slip in
+     * between.
+     *
+     * @param file a stored image file
+     * @return true if the file was deleted
+     */
+    public synchronized boolean deleteIfUnreferenced(File file) {
+        return !isFileReferenced(file) && file.delete();
+    }
+
+    /**
+     * Reserve a stored file for an image that is being imported, so it is not deleted before the
+     * image is added. Release it with releaseFile once the image is in the store, or dropped.
+     *
+     * @param file the stored image file
+     */
+    public synchronized void reserveFile(File file) {
+        reservedFiles.add(file.getAbsolutePath());
+    }
+
+    /**
+     * Release a reservation made by reserveFile.
+     *
+     * @param file the stored image file
+     */
+    public synchronized void releaseFile(File file) {
+        reservedFiles.release(file.getAbsolutePath());
+    }
+
+    /**
+     * Point an image at a new location (e.g. after its file was moved), keeping the file
+     * reference counts in step.
+     *
+     * @param img the image object
+     * @param uri the new location
+     */
+    public synchronized void setUri(ImageObject img, Uri uri) {
+        boolean indexed = referenceImages.get(img.getId()) == img;
+        if (indexed)
+            removeFileReference(img.getUri());
+        img.setUri(uri);
+        if (indexed)
+            addFileReference(uri);
+    }
+
+    /**
+     * Gets a copy of the ids of all images in the store.
+     *
+     * @return the ids
+     */
+    public synchronized Set<String> getIdSnapshot() {
+        return new HashSet<>(referenceImages.keySet());
+    }
+
+    /**
+     * Gets a copy of the absolute paths of all stored files referenced by the store.
+     *
+     * @return the referenced paths
+     */
+    public synchronized Set<String> getFileReferenceSnapshot() {
+        return fileReferences.getKeySnapshot();
+    }
+
+    private void addFileReference(Uri uri) {
+        if (uri != null && uri.getPath() != null)
+            fileReferences.add(new File(uri.getPath()).getAbsolutePath());
+    }
+
+    private void removeFileReference(Uri uri) {
+        if (uri != null && uri.getPath() != null)
+            fileReferences.release(new File(uri.getPath()).getAbsolutePath());
+    }
+
+    /**
+     * Sets (or replaces) the perceptual hash of an image and updates the near-duplicate index.
+     *
+     * @param img  the image object
+     * @param hash the perceptual hash
+     */
+    public synchronized void setPerceptualHash(ImageObject img, long hash) {
+        boolean indexed = referenceImages.get(img.getId()) == img;
+        if (indexed && img.isPerceptualHashSet())
+            similarImages.remove(img.getPerceptualHash(), img.getId());
+        img.setPerceptualHash(hash);
+        if (indexed)
+            similarImages.add(hash, img.getId());
+    }
+
+    /**
+     * Gets the image objects that look like the given perceptual hash.
+     *
+     * @param hash        the perceptual hash
+     * @param maxDistance the largest Hamming distance to be considered similar
+     * @return similar image objects, empty if none
+     */
+    public synchronized List<ImageObject> getSimilarImageObjects(long hash, int maxDistance) {
+        List<ImageObject> similar = new ArrayList<>();
+        for (String id : similarImages.search(hash, maxDistance)) {
+            ImageObject img = referenceImages.get(id);
+            if (img != null)
+                similar.add(img);
+        }
+        return similar;
+    }
+
+    /**
+     * Reserve the perceptual hash of an image being imported, unless a stored image or another
+     * import in progress looks like it. Checking and reserving is one step, so two look-alike
+     * images imported in parallel cannot both pass. Release the reservation once the image has
+     * been added to the store, or dropped.
+     *
+     * @param hash        the perceptual hash
+     * @param maxDistance the largest Hamming distance to be considered similar
+     * @param key         identifies the import, e.g. its source uri
+     * @return true if reserved, false if a similar image exists or is being imported
+     */
+    public synchronized boolean reserveDistinct(long hash, int maxDistance, String key) {
+        if (!getSimilarImageObjects(hash, maxDistance).isEmpty() || !pendingImports.search(hash, maxDistance).isEmpty())
+            return false;
+        pendingImports.add(hash, key);
+        pendingImportCount++;
+        return true;
+    }
+
+    /**
+     * Release a reservation made by reserveDistinct.
+     *
+     * @param hash the perceptual hash
+     * @param key  the key it was reserved with
+     */
+    public synchronized void releaseReservation(long hash, String key) {
+        pendingImports.remove(hash, key);
+        // Removing leaves empty nodes behind; drop them once no import is in progress
+        if (--pendingImportCount == 0)
+            pendingImports.clear();
+    }
+
+    /**
+     * Gets groups of images that look alike, in the order of the active view.
+     * Each group contains two or more images and an image appears in at most one group.
+     *
+     * @param maxDistance the largest Hamming distance to be considered similar
+     * @return the groups of similar images, empty if none
+     */
+    public synchronized List<List<ImageObject>> getSimilarImageGroups(int maxDistance) {
+        List<List<ImageObject>> groups = new ArrayList<>();
+        Set<String> grouped = new HashSet<>();
+        for (ImageObject img : getImageObjectArray()) {
+            if (!img.isPerceptualHashSet() || grouped.contains(img.getId()))
+                continue;
+            List<ImageObject> group = new ArrayList<>();
+            group.add(img);
+            for (ImageObject similar : getSimilarImageObjects(img.getPerceptualHash(), maxDistance)) {
+                if (similar != img && !grouped.contains(similar.getId()))
+                    group.add(similar);
+            }
+            if (group.size() > 1) {
+                group.forEach(member -> grouped.add(member.getId()));
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
     /**
      * Gets image object by name.
      *
@@ -419,25 +1007,24 @@ public class ImageStore {
     }
 
     /**
-     * Add.
+     * Add several objects as one change (see Transaction).
      *
      * @param col the col
      */
     public synchronized void add(Collection<ImageObject> col){
-        col.forEach(img -> addImageObject(img, -1, false));
-        listeners.stream()
-                .filter(Objects::nonNull)
-                .forEach(ImageStoreListener::onReplace);
+        Transaction transaction = edit();
+        col.forEach(transaction::add);
+        transaction.commit();
     }
 
     /**
-     * Replace all objects in the ImageStore with the provided collection
+     * Replace all objects in the ImageStore with the provided collection, as one change (see
+     * Transaction).
      *
      * @param col the col
      */
     public synchronized void replace(Collection<ImageObject> col) {
-        store.clear(true);
-        col.forEach(this::addImageObject);
+        edit().clear().addAll(col).commit();
     }
 
     /**
@@ -471,10 +1058,11 @@ public class ImageStore {
         if (!listsOnly)
             setActive("");
         sortedImages.forEach(TreeSet::clear);
-        listeners
-                .stream()
-                .filter(Objects::nonNull)
-                .forEach(ImageStoreListener::onClear);
+        similarImages.clear();
+        fingerprints.clear();
+        unfingerprinted = 0;
+        fileReferences.clear();
+        dispatcher.structureChanged();
     }
 
     /**
@@ -503,110 +1091,155 @@ public class ImageStore {
     public synchronized void setSortCriteria(int sortCriteria) {
         int prevSortCriteria = this.sortCriteria;
         this.sortCriteria = sortCriteria;
-        listeners
-                .stream()
-                .filter(Objects::nonNull)
-                .forEach(listener -> listener.onSortCriteriaChanged(prevSortCriteria));
+        if (prevSortCriteria != sortCriteria)
+            dispatcher.structureChanged();
     }
 
     /**
-     * Move image object boolean.
+     * Move an image to a new position in the custom order, as one change. The image stays active
+     * if it is the active wallpaper.
      *
      * @param object the object
      * @param newPos the new pos
      */
     public synchronized void moveImageObject(ImageObject object, int newPos) {
-        if (referenceImages.containsKey(object.getId())) {
-            int prevPos = getPosition(object.getId());
-            boolean wasActive = getActiveId().equals(object.getId());
-            delImageObject(object.getId());
-            if (wasActive)
-                lastWallpaperId = object.getId();
-            addImageObject(object, newPos);
-            listeners.stream()
-                    .filter(Objects::nonNull)
-                    .forEach(listener -> listener.onMove(prevPos, newPos));
-        }
+        if (referenceImages.containsKey(object.getId()))
+            apply(edit().move(object.getId(), newPos).ops, false);
     }
 
     /**
-     * Add sort listener.
-     *
-     * @param sl the sl
+     * A batch of adds, deletes and moves applied to the store as one change: the indices are
+     * updated once, the store is saved once and listeners see a single change.
+     * Changes are applied in the order they were made.
      */
-    public void addListener(ImageStoreListener sl) {
-        listeners.add(sl);
-    }
+    public class Transaction {
+        private final List<Op> ops = new ArrayList<>();
 
-    /**
-     * Remove sort listener.
-     *
-     * @param sl the sl
-     */
-    public void removeListener(ImageStoreListener sl) {
-        listeners.remove(sl);
-    }
+        private Transaction() {
+        }
 
-    /**
-     * The interface Image store sort listener.
-     */
-    public interface ImageStoreListener {
         /**
-         * On image store sort changed.
+         * Append an image.
          *
-         * @param prevSortCriteria the prev sort criteria
+         * @param img the image
+         * @return this transaction
          */
-        void onSortCriteriaChanged(int prevSortCriteria);
+        public Transaction add(ImageObject img) {
+            return add(img, -1);
+        }
 
         /**
-         * On delete.
+         * Add an image at a position in the custom order.
          *
-         * @param obj     the obj
-         * @param lastPos the last pos
+         * @param img         the image
+         * @param refPosition the position, or -1 to append
+         * @return this transaction
          */
-        @SuppressWarnings("unused")
-        void onDelete(ImageObject obj, int lastPos);
-
-        /**
-         * On shuffle.
-         */
-        void onShuffle();
+        public Transaction add(ImageObject img, int refPosition) {
+            ops.add(new Op(Op.ADD, img, img.getId(), refPosition));
+            return this;
+        }
 
         /**
-         * On clear.
+         * Append several images.
+         *
+         * @param images the images
+         * @return this transaction
          */
-        void onClear();
+        public Transaction addAll(Collection<ImageObject> images) {
+            images.forEach(this::add);
+            return this;
+        }
 
         /**
-         * On move.
+         * Delete an image.
          *
-         * @param oldPos the old pos
-         * @param newPos the new pos
+         * @param id the image id
+         * @return this transaction
          */
-        void onMove(int oldPos, int newPos);
+        public Transaction delete(String id) {
+            ops.add(new Op(Op.DELETE, null, id, -1));
+            return this;
+        }
 
         /**
-         * On set active.
+         * Move an image to a position in the custom order.
          *
-         * @param activeObj the active obj
-         * @param prevObj   the prev obj
+         * @param id     the image id
+         * @param newPos the new position
+         * @return this transaction
          */
-        void onSetActive(ImageObject activeObj, ImageObject prevObj);
+        public Transaction move(String id, int newPos) {
+            ops.add(new Op(Op.MOVE, null, id, newPos));
+            return this;
+        }
 
         /**
-         * On add.
+         * Remove all images. The active wallpaper is kept if it is added again.
          *
-         * @param obj the obj
-         * @param pos the pos
+         * @return this transaction
          */
-        @SuppressWarnings("unused")
-        void onAdd(ImageObject obj, int pos);
+        public Transaction clear() {
+            ops.add(new Op(Op.CLEAR, null, null, -1));
+            return this;
+        }
 
         /**
-         * On replace.
+         * Apply the changes and save the store.
          */
-        void onReplace();
+        public void commit() {
+            apply(ops, true);
+        }
+    }
+
+    /**
+     * One change of a Transaction.
+     */
+    static class Op {
+        static final int ADD = 0;
+        static final int DELETE = 1;
+        static final int MOVE = 2;
+        static final int CLEAR = 3;
+        final int type;
+        final ImageObject img;
+        final String id;
+        final int position;
+
+        Op(int type, ImageObject img, String id, int position) {
+            this.type = type;
+            this.img = img;
+            this.id = id;
+            this.position = position;
+        }
     }
 
+    /**
+     * Add a change listener. Changes are delivered on the main thread, at most once per frame.
+     *
+     * @param listener the listener
+     */
+    public void addListener(ChangeListener listener) {
+        dispatcher.addListener(listener);
+    }
 
+    /**
+     * Remove a change listener.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(ChangeListener listener) {
+        dispatcher.removeListener(listener);
+    }
+
+    /**
+     * The interface Image store change listener.
+     */
+    public interface ChangeListener {
+        /**
+         * On image store changed. Called on the main thread with all changes since the last call.
+         *
+         * @param changes the changes
+         */
+        void onStoreChanged(StoreChangeSet changes);
+    }
 }
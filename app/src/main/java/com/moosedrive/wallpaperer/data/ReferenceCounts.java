@@ -0,0 +1,58 @@
+package com.moosedrive.wallpaperer.data;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reference counts by key, e.g. of the stored files in use by images. A key is referenced until
+ * it has been released as often as it was added. Not thread safe; ImageStore guards it with its
+ * own lock.
+ */
+class ReferenceCounts {
+    private final HashMap<String, Integer> counts = new HashMap<>();
+
+    /**
+     * Add a reference.
+     *
+     * @param key the key
+     */
+    void add(String key) {
+        counts.merge(key, 1, Integer::sum);
+    }
+
+    /**
+     * Release a reference. Releasing a key that is not referenced does nothing.
+     *
+     * @param key the key
+     */
+    void release(String key) {
+        counts.computeIfPresent(key, (k, count) -> (count > 1) ? count - 1 : null);
+    }
+
+    /**
+     * Checks if a key is referenced.
+     *
+     * @param key the key
+     * @return true if it has a reference
+     */
+    boolean contains(String key) {
+        return counts.containsKey(key);
+    }
+
+    /**
+     * Gets a copy of the referenced keys.
+     *
+     * @return the keys
+     */
+    Set<String> getKeySnapshot() {
+        return new HashSet<>(counts.keySet());
+    }
+
+    /**
+     * Drop all references.
+     */
+    void clear() {
+        counts.clear();
+    }
+}
@@ -0,0 +1,50 @@
+package com.moosedrive.wallpaperer.data;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * All changes made to the ImageStore during one frame, delivered to ImageStore.ChangeListener.
+ */
+public class StoreChangeSet {
+    private final boolean structureChanged;
+    private final Set<String> changedIds;
+    private final String activeId;
+
+    StoreChangeSet(boolean structureChanged, Set<String> changedIds, String activeId) {
+        this.structureChanged = structureChanged;
+        this.changedIds = Collections.unmodifiableSet(changedIds);
+        this.activeId = activeId;
+    }
+
+    /**
+     * Checks if images were added, removed or reordered.
+     *
+     * @return true if the list of images changed
+     */
+    public boolean isStructureChanged() {
+        return structureChanged;
+    }
+
+    /**
+     * Gets the images whose own state changed, e.g. becoming the active wallpaper.
+     *
+     * @return the image ids
+     */
+    public Set<String> getChangedIds() {
+        return changedIds;
+    }
+
+    /**
+     * Gets the id of the active wallpaper, if it changed. The previous and the new active image
+     * are also in getChangedIds.
+     *
+     * @return the new active id, empty if there is none, or null if it did not change
+     */
+    @Nullable
+    public String getActiveId() {
+        return activeId;
+    }
+}
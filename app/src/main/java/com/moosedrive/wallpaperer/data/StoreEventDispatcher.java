@@ -0,0 +1,93 @@
+package com.moosedrive.wallpaperer.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Collects ImageStore changes from any thread and delivers them on the main thread, once per
+ * frame, as a single StoreChangeSet. The thread that changed the store never runs listener code.
+ */
+class StoreEventDispatcher implements Choreographer.FrameCallback {
+    private final Set<ImageStore.ChangeListener> listeners = new CopyOnWriteArraySet<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean structureChanged = false;
+    private Set<String> changedIds = new HashSet<>();
+    private String activeId = null;
+    private boolean scheduled = false;
+
+    void addListener(ImageStore.ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(ImageStore.ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Record that images were added, removed or reordered.
+     */
+    synchronized void structureChanged() {
+        if (listeners.isEmpty())
+            return;
+        structureChanged = true;
+        schedule();
+    }
+
+    /**
+     * Record that the state of an image changed.
+     *
+     * @param id the image id, ignored if empty
+     */
+    synchronized void itemChanged(String id) {
+        if (listeners.isEmpty() || id == null || id.isEmpty())
+            return;
+        changedIds.add(id);
+        schedule();
+    }
+
+    /**
+     * Record that another image became the active wallpaper.
+     *
+     * @param prevId the previously active id, empty if none
+     * @param id     the active id, empty if none
+     */
+    synchronized void activeChanged(String prevId, String id) {
+        if (listeners.isEmpty())
+            return;
+        activeId = id;
+        if (!prevId.isEmpty())
+            changedIds.add(prevId);
+        if (!id.isEmpty())
+            changedIds.add(id);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled)
+            return;
+        scheduled = true;
+        // Choreographer is per looper, so it must be obtained on the main thread
+        if (Looper.myLooper() == Looper.getMainLooper())
+            Choreographer.getInstance().postFrameCallback(this);
+        else
+            mainHandler.post(() -> Choreographer.getInstance().postFrameCallback(this));
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        StoreChangeSet changes;
+        synchronized (this) {
+            changes = new StoreChangeSet(structureChanged, changedIds, activeId);
+            structureChanged = false;
+            changedIds = new HashSet<>();
+            activeId = null;
+            scheduled = false;
+        }
+        listeners.forEach(listener -> listener.onStoreChanged(changes));
+    }
+}
@@ -0,0 +1,100 @@
+package com.moosedrive.wallpaperer.glide;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.moosedrive.wallpaperer.data.ImageObject;
+
+import java.util.Objects;
+
+/**
+ * Glide model for one thumbnail level of an image in the ThumbnailPack.
+ * Two models are equal (and share Glide cache entries) when they are for the same image id, level
+ * and stored file signature, so a card is only reloaded when its image file changed. The adapter
+ * position is not part of the identity; it is set when the card is bound and only orders
+ * thumbnail generation (see ThumbnailQueue).
+ */
+public class ThumbnailModel {
+    private final String id;
+    private final Uri source;
+    private final int size;
+    private final String signature;
+    private volatile int position = -1;
+
+    /**
+     * Instantiates a new Thumbnail model.
+     *
+     * @param id        the ImageObject id
+     * @param source    the image, used if the thumbnail must be created
+     * @param size      the thumbnail level (see StorageUtils.getThumbnailSize)
+     * @param signature the stored file signature (see StorageUtils.getFileSignature), may be null
+     */
+    public ThumbnailModel(String id, Uri source, int size, String signature) {
+        this.id = id;
+        this.source = source;
+        this.size = size;
+        this.signature = signature;
+    }
+
+    /**
+     * Instantiates a new Thumbnail model for an image.
+     *
+     * @param img  the image
+     * @param size the thumbnail level (see StorageUtils.getThumbnailSize)
+     */
+    public ThumbnailModel(ImageObject img, int size) {
+        this(img.getId(), img.getUri(), size, img.getSignature());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Uri getSource() {
+        return source;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * Gets the adapter position of the card showing this thumbnail.
+     *
+     * @return the position, or -1 if it is not being displayed
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        this.position = position;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ThumbnailModel))
+            return false;
+        ThumbnailModel other = (ThumbnailModel) o;
+        return size == other.size && id.equals(other.id) && Objects.equals(signature, other.signature);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, size, signature);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        // Glide derives disk cache keys from this
+        return "thumbnail:" + id + "@" + size + ((signature == null) ? "" : "#" + signature);
+    }
+}
@@ -0,0 +1,133 @@
+package com.moosedrive.wallpaperer.glide;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+import com.moosedrive.wallpaperer.utils.StorageUtils;
+import com.moosedrive.wallpaperer.utils.ThumbnailPack;
+import com.moosedrive.wallpaperer.utils.ThumbnailQueue;
+
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Loads thumbnails straight out of the ThumbnailPack, creating missing levels on demand. Glide decodes the returned buffer with its
+ * standard ByteBuffer decoders.
+ */
+public class ThumbnailModelLoader implements ModelLoader<ThumbnailModel, ByteBuffer> {
+    private final Context context;
+
+    ThumbnailModelLoader(Context context) {
+        this.context = context;
+    }
+
+    @Nullable
+    @Override
+    public LoadData<ByteBuffer> buildLoadData(@NonNull ThumbnailModel model, int width, int height, @NonNull Options options) {
+        return new LoadData<>(new ObjectKey(model), new ThumbnailFetcher(context, model));
+    }
+
+    @Override
+    public boolean handles(@NonNull ThumbnailModel model) {
+        return true;
+    }
+
+    /**
+     * Fetches a compressed thumbnail. A miss is handed to the ThumbnailQueue, ordered by how close
+     * the image is to the visible part of the grid.
+     */
+    static class ThumbnailFetcher implements DataFetcher<ByteBuffer> {
+        private final Context context;
+        private final ThumbnailModel model;
+        private volatile boolean cancelled = false;
+        private volatile ThumbnailQueue.Job job;
+
+        ThumbnailFetcher(Context context, ThumbnailModel model) {
+            this.context = context;
+            this.model = model;
+        }
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super ByteBuffer> callback) {
+            byte[] thumbnail = ThumbnailPack.getInstance(context).get(StorageUtils.getThumbnailKey(model.getId(), model.getSize()));
+            if (thumbnail != null) {
+                callback.onDataReady(ByteBuffer.wrap(thumbnail));
+                return;
+            }
+            job = ThumbnailQueue.getInstance().submit(context, model.getId(), model.getSource(), model.getSize(), model::getPosition, new ThumbnailQueue.Callback() {
+                @Override
+                public void onThumbnail(@Nullable byte[] result) {
+                    if (cancelled)
+                        return;
+                    if (result == null)
+                        callback.onLoadFailed(new FileNotFoundException("No thumbnail for " + model.getId()));
+                    else
+                        callback.onDataReady(ByteBuffer.wrap(result));
+                }
+
+                @Override
+                public void onCancelled() {
+                    // Glide waits for an answer unless it cancelled the load itself
+                    if (!cancelled)
+                        callback.onLoadFailed(new CancellationException("Thumbnail for " + model.getId() + " dropped by the queue"));
+                }
+            });
+        }
+
+        @Override
+        public void cleanup() {
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            ThumbnailQueue.Job pending = job;
+            if (pending != null)
+                pending.cancel();
+        }
+
+        @NonNull
+        @Override
+        public Class<ByteBuffer> getDataClass() {
+            return ByteBuffer.class;
+        }
+
+        @NonNull
+        @Override
+        public DataSource getDataSource() {
+            return DataSource.LOCAL;
+        }
+    }
+
+    /**
+     * Factory registered with Glide in WallpapererGlideModule.
+     */
+    public static class Factory implements ModelLoaderFactory<ThumbnailModel, ByteBuffer> {
+        private final Context context;
+
+        public Factory(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @NonNull
+        @Override
+        public ModelLoader<ThumbnailModel, ByteBuffer> build(@NonNull MultiModelLoaderFactory multiFactory) {
+            return new ThumbnailModelLoader(context);
+        }
+
+        @Override
+        public void teardown() {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.moosedrive.wallpaperer.glide;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.Registry;
+import com.bumptech.glide.annotation.GlideModule;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+import com.bumptech.glide.load.engine.cache.LruResourceCache;
+import com.bumptech.glide.module.AppGlideModule;
+import com.moosedrive.wallpaperer.R;
+import com.moosedrive.wallpaperer.RVAdapter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Glide configuration for the app.
+ * The memory cache and bitmap pool are sized for the image grid: enough decoded cards for a few
+ * screens, capped to a share of the app's memory class. Glide cannot be resized once it is
+ * initialized, and the column setting and the orientation can change afterwards, so the size is
+ * that of the largest screenful of cards any column setting allows in either orientation.
+ */
+@GlideModule
+public final class WallpapererGlideModule extends AppGlideModule {
+    /**
+     * Screens of cards kept in the memory cache (the one on display plus scrolling either way).
+     */
+    private static final int CACHED_SCREENS = 3;
+    /**
+     * Screens of card-sized bitmaps kept in the pool for reuse.
+     */
+    private static final int POOLED_SCREENS = 1;
+    /**
+     * Neither the cache nor the pool may use more than this fraction of the memory class.
+     */
+    private static final int MAX_SHARE_OF_MEMORY_CLASS = 6;
+
+    @Override
+    public void applyOptions(@NonNull Context context, @NonNull GlideBuilder builder) {
+        int width = Resources.getSystem().getDisplayMetrics().widthPixels;
+        int height = Resources.getSystem().getDisplayMetrics().heightPixels;
+        long bytesPerScreen = 0;
+        for (String columns : context.getResources().getStringArray(R.array.thumbnail_columns)) {
+            bytesPerScreen = Math.max(bytesPerScreen, getBytesPerScreen(context, Integer.parseInt(columns), width, height));
+            bytesPerScreen = Math.max(bytesPerScreen, getBytesPerScreen(context, Integer.parseInt(columns), height, width));
+        }
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long maxBytes = (long) activityManager.getMemoryClass() * 1024 * 1024 / MAX_SHARE_OF_MEMORY_CLASS;
+        builder.setMemoryCache(new LruResourceCache(Math.min(bytesPerScreen * CACHED_SCREENS, maxBytes)));
+        builder.setBitmapPool(new LruBitmapPool(Math.min(bytesPerScreen * POOLED_SCREENS, maxBytes)));
+    }
+
+    /**
+     * Gets the memory taken by the decoded cards on one screen, counting the partly visible ones.
+     */
+    private static long getBytesPerScreen(Context context, int columns, int width, int height) {
+        int cardSize = RVAdapter.getCardSize(context, columns, width, height);
+        long cardsPerScreen = (long) (width / cardSize + 1) * (height / cardSize + 1);
+        return cardsPerScreen * cardSize * cardSize * 4;
+    }
+
+    @Override
+    public void registerComponents(@NonNull Context context, @NonNull Glide glide, @NonNull Registry registry) {
+        registry.prepend(ThumbnailModel.class, ByteBuffer.class, new ThumbnailModelLoader.Factory(context));
+    }
+
+    @Override
+    public boolean isManifestParsingEnabled() {
+        return false;
+    }
+}
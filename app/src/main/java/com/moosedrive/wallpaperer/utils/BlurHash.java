@@ -0,0 +1,198 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * BlurHash encoder and decoder (see https://blurha.sh).
+ * An image is reduced to a few cosine components and packed into a short base 83 string, 28
+ * characters for the 4x3 components used here, which decodes into a soft placeholder of the
+ * image's colors and rough layout.
+ */
+public class BlurHash {
+    private static final String CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+    private static final int COMPONENTS_X = 4;
+    private static final int COMPONENTS_Y = 3;
+    /**
+     * Bitmaps are scaled down to this size before encoding; more pixels do not change the result.
+     */
+    private static final int ENCODE_SIZE = 32;
+
+    private BlurHash() {
+    }
+
+    /**
+     * Encode a bitmap, typically the thumbnail.
+     *
+     * @param source the bitmap
+     * @return the hash
+     */
+    public static String encode(Bitmap source) {
+        Bitmap bm = Bitmap.createScaledBitmap(source, ENCODE_SIZE, ENCODE_SIZE, true);
+        int[] pixels = new int[ENCODE_SIZE * ENCODE_SIZE];
+        bm.getPixels(pixels, 0, ENCODE_SIZE, 0, 0, ENCODE_SIZE, ENCODE_SIZE);
+        return encode(pixels, ENCODE_SIZE, ENCODE_SIZE);
+    }
+
+    /**
+     * Encode an image given as ARGB pixels.
+     *
+     * @param pixels the pixels, row by row
+     * @param width  the image width
+     * @param height the image height
+     * @return the hash
+     */
+    static String encode(int[] pixels, int width, int height) {
+        float[] linear = new float[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            linear[i * 3] = sRGBToLinear((pixels[i] >> 16) & 0xFF);
+            linear[i * 3 + 1] = sRGBToLinear((pixels[i] >> 8) & 0xFF);
+            linear[i * 3 + 2] = sRGBToLinear(pixels[i] & 0xFF);
+        }
+        float[][] factors = new float[COMPONENTS_X * COMPONENTS_Y][3];
+        for (int j = 0; j < COMPONENTS_Y; j++) {
+            for (int i = 0; i < COMPONENTS_X; i++) {
+                float normalisation = (i == 0 && j == 0) ? 1 : 2;
+                float[] factor = factors[j * COMPONENTS_X + i];
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        float basis = normalisation
+                                * (float) Math.cos(Math.PI * i * x / width)
+                                * (float) Math.cos(Math.PI * j * y / height);
+                        int p = (y * width + x) * 3;
+                        factor[0] += basis * linear[p];
+                        factor[1] += basis * linear[p + 1];
+                        factor[2] += basis * linear[p + 2];
+                    }
+                }
+                for (int c = 0; c < 3; c++)
+                    factor[c] /= width * height;
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        encode83((COMPONENTS_X - 1) + (COMPONENTS_Y - 1) * 9, 1, hash);
+        float maximumValue = 0;
+        for (int f = 1; f < factors.length; f++) {
+            for (int c = 0; c < 3; c++)
+                maximumValue = Math.max(maximumValue, Math.abs(factors[f][c]));
+        }
+        int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(maximumValue * 166 - 0.5)));
+        maximumValue = (quantisedMaximum + 1) / 166f;
+        encode83(quantisedMaximum, 1, hash);
+        float[] dc = factors[0];
+        encode83((linearToSRGB(dc[0]) << 16) + (linearToSRGB(dc[1]) << 8) + linearToSRGB(dc[2]), 4, hash);
+        for (int f = 1; f < factors.length; f++) {
+            int value = 0;
+            for (int c = 0; c < 3; c++) {
+                int quantised = (int) Math.max(0, Math.min(18, Math.floor(signPow(factors[f][c] / maximumValue, 0.5f) * 9 + 9.5)));
+                value = value * 19 + quantised;
+            }
+            encode83(value, 2, hash);
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Decode a hash into a small bitmap, to be scaled up for display.
+     *
+     * @param hash   the hash
+     * @param width  the bitmap width
+     * @param height the bitmap height
+     * @return the bitmap, or null if the hash is not valid
+     */
+    public static Bitmap decode(String hash, int width, int height) {
+        int[] pixels = decodePixels(hash, width, height);
+        return (pixels == null) ? null : Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decode a hash into ARGB pixels.
+     *
+     * @param hash   the hash
+     * @param width  the image width
+     * @param height the image height
+     * @return the pixels, row by row, or null if the hash is not valid
+     */
+    static int[] decodePixels(String hash, int width, int height) {
+        if (hash == null || hash.length() < 6)
+            return null;
+        int sizeFlag = decode83(hash, 0, 1);
+        int componentsY = sizeFlag / 9 + 1;
+        int componentsX = sizeFlag % 9 + 1;
+        if (sizeFlag < 0 || hash.length() != 4 + 2 * componentsX * componentsY)
+            return null;
+        float maximumValue = (decode83(hash, 1, 2) + 1) / 166f;
+        float[][] colors = new float[componentsX * componentsY][3];
+        int dc = decode83(hash, 2, 6);
+        colors[0][0] = sRGBToLinear(dc >> 16);
+        colors[0][1] = sRGBToLinear((dc >> 8) & 0xFF);
+        colors[0][2] = sRGBToLinear(dc & 0xFF);
+        for (int f = 1; f < colors.length; f++) {
+            int ac = decode83(hash, 4 + f * 2, 6 + f * 2);
+            colors[f][0] = signPow((ac / (19 * 19) - 9) / 9f, 2) * maximumValue;
+            colors[f][1] = signPow((ac / 19 % 19 - 9) / 9f, 2) * maximumValue;
+            colors[f][2] = signPow((ac % 19 - 9) / 9f, 2) * maximumValue;
+        }
+        // The cosines only depend on one coordinate each, so tabulate them once
+        float[] cosX = new float[width * componentsX];
+        for (int x = 0; x < width; x++) {
+            for (int i = 0; i < componentsX; i++)
+                cosX[x * componentsX + i] = (float) Math.cos(Math.PI * x * i / width);
+        }
+        float[] cosY = new float[height * componentsY];
+        for (int y = 0; y < height; y++) {
+            for (int j = 0; j < componentsY; j++)
+                cosY[y * componentsY + j] = (float) Math.cos(Math.PI * y * j / height);
+        }
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float r = 0, g = 0, b = 0;
+                for (int j = 0; j < componentsY; j++) {
+                    for (int i = 0; i < componentsX; i++) {
+                        float basis = cosX[x * componentsX + i] * cosY[y * componentsY + j];
+                        float[] color = colors[j * componentsX + i];
+                        r += color[0] * basis;
+                        g += color[1] * basis;
+                        b += color[2] * basis;
+                    }
+                }
+                pixels[y * width + x] = 0xFF000000 | (linearToSRGB(r) << 16) | (linearToSRGB(g) << 8) | linearToSRGB(b);
+            }
+        }
+        return pixels;
+    }
+
+    private static void encode83(int value, int length, StringBuilder out) {
+        for (int i = 1; i <= length; i++) {
+            int digit = (int) (value / Math.pow(83, length - i)) % 83;
+            out.append(CHARACTERS.charAt(digit));
+        }
+    }
+
+    private static int decode83(String hash, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = CHARACTERS.indexOf(hash.charAt(i));
+            if (digit < 0)
+                return -1;
+            value = value * 83 + digit;
+        }
+        return value;
+    }
+
+    private static float sRGBToLinear(int value) {
+        float v = value / 255f;
+        return (v <= 0.04045f) ? v / 12.92f : (float) Math.pow((v + 0.055f) / 1.055f, 2.4f);
+    }
+
+    private static int linearToSRGB(float value) {
+        float v = Math.max(0, Math.min(1, value));
+        if (v <= 0.0031308f)
+            return (int) (v * 12.92f * 255 + 0.5f);
+        return (int) ((1.055f * Math.pow(v, 1 / 2.4f) - 0.055f) * 255 + 0.5f);
+    }
+
+    private static float signPow(float value, float exp) {
+        return Math.copySign((float) Math.pow(Math.abs(value), exp), value);
+    }
+}
@@ -0,0 +1,183 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.moosedrive.wallpaperer.R;
+import com.moosedrive.wallpaperer.data.ImageObject;
+import com.moosedrive.wallpaperer.data.ImageStore;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Verifies stored images against their content hash, so damaged files are found before the
+ * wallpaper rotation reaches them.
+ * An image id is the hash of the original source. Stored copies must hash to the id; an image
+ * recompressed at import (stored as WebP) cannot, so the hash of its stored file is recorded (see
+ * ImageObject.getChecksum) the first time it is seen, if the whole file still decodes, and verified
+ * on later passes. Any other mismatch is damage. Images that fail are
+ * flagged as damaged and skipped by ImageStore.activateNext; a damaged image that verifies again
+ * is cleared.
+ * Runs while the device is charging and idle. Files are read at a limited rate and the images
+ * are visited in id order from a persisted cursor, so a pass that is stopped resumes where it left
+ * off.
+ */
+public class ContentScrubber extends Worker {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Read rate limit in bytes per second.
+     */
+    private static final long MAX_BYTES_PER_SECOND = 4L * 1024 * 1024;
+    private static final int SAVE_BATCH_SIZE = 25;
+
+    public ContentScrubber(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedule a daily verification pass, if not already scheduled.
+     *
+     * @param context the context
+     */
+    public static void schedulePeriodic(Context context) {
+        Context mContext = context.getApplicationContext();
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(ContentScrubber.class, 1, TimeUnit.DAYS)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiresCharging(true)
+                        .setRequiresDeviceIdle(true)
+                        .build())
+                .build();
+        WorkManager.getInstance(mContext)
+                .enqueueUniquePeriodicWork(mContext.getString(R.string.work_content_scrubber_id),
+                        ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        ImageStore store = ImageStore.getInstance(context);
+        store.ensureLoaded(context);
+        String cursor = PreferenceHelper.getScrubCursor(context);
+        List<ImageObject> images = store.getReferenceObjects().stream()
+                .filter(img -> img.getId().compareTo(cursor) > 0)
+                .sorted(Comparator.comparing(ImageObject::getId))
+                .collect(Collectors.toList());
+        String lastId = cursor;
+        int unsaved = 0;
+        try {
+            for (ImageObject img : images) {
+                if (isStopped())
+                    break;
+                verify(store, img);
+                lastId = img.getId();
+                if (++unsaved == SAVE_BATCH_SIZE) {
+                    save(context, store, lastId);
+                    unsaved = 0;
+                }
+            }
+            if (!isStopped())
+                // Pass complete, start over next time
+                lastId = "";
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return Result.failure();
+        } finally {
+            save(context, store, lastId);
+        }
+        return Result.success();
+    }
+
+    /**
+     * Save the library and the cursor together, so a verified image is never visited twice in
+     * one pass and a flag is never lost.
+     */
+    private void save(Context context, ImageStore store, String cursor) {
+        store.saveToPrefs();
+        PreferenceHelper.setScrubCursor(context, cursor);
+    }
+
+    private void verify(ImageStore store, ImageObject img) throws InterruptedException, NoSuchAlgorithmException {
+        if (!"file".equals(img.getUri().getScheme()))
+            return;
+        String hash = hashThrottled(img);
+        boolean damaged;
+        if (hash == null)
+            damaged = true;
+        else if (hash.equals(img.getId()) || hash.equals(img.getChecksum()))
+            damaged = false;
+        else if (img.getChecksum() == null && isRecompressed(img) && isDecodable(img)) {
+            // Recompressed at import; trust it from now on
+            store.setChecksum(img, hash);
+            damaged = false;
+        } else
+            damaged = true;
+        store.setDamaged(img, damaged);
+    }
+
+    /**
+     * Hash the stored file without exceeding the read rate limit.
+     *
+     * @param img the image
+     * @return the hash, or null if the file could not be read
+     */
+    private String hashThrottled(ImageObject img) throws InterruptedException, NoSuchAlgorithmException {
+        MessageDigest digest = StorageUtils.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long start = System.currentTimeMillis();
+        long total = 0;
+        try (InputStream input = new FileInputStream(img.getUri().getPath())) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                if (isStopped())
+                    throw new InterruptedException("Stopped");
+                digest.update(buffer, 0, read);
+                total += read;
+                long ahead = total * 1000 / MAX_BYTES_PER_SECOND - (System.currentTimeMillis() - start);
+                if (ahead > 0)
+                    Thread.sleep(ahead);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return StorageUtils.toHex(digest.digest());
+    }
+
+    private boolean isRecompressed(ImageObject img) {
+        return "image/webp".equals(img.getType());
+    }
+
+    /**
+     * Decode the whole file; a damaged file can still have an intact header.
+     */
+    private boolean isDecodable(ImageObject img) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // Subsampling still reads the entire stream, it only bounds the memory used
+        options.inSampleSize = 4;
+        Bitmap bm = BitmapFactory.decodeFile(img.getUri().getPath(), options);
+        if (bm == null)
+            return false;
+        bm.recycle();
+        return true;
+    }
+}
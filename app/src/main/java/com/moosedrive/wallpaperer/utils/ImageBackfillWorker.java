@@ -0,0 +1,121 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.NonNull;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.moosedrive.wallpaperer.R;
+import com.moosedrive.wallpaperer.data.ImageObject;
+import com.moosedrive.wallpaperer.data.ImageStore;
+
+/**
+ * Fills in the card color, perceptual hash, placeholder and source fingerprint of images added
+ * before they were computed at import. All but the fingerprint come from the small base
+ * thumbnail. Images are processed one at a time with a pause in between, and saved in batches so
+ * progress survives the worker being stopped.
+ */
+public class ImageBackfillWorker extends Worker {
+    private static final int SAVE_BATCH_SIZE = 25;
+    private static final long PAUSE_MILLIS = 50;
+
+    public ImageBackfillWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Start the backfill in the background if any image needs it.
+     *
+     * @param context the context
+     */
+    public static void backfillIfNeeded(Context context) {
+        Context mContext = context.getApplicationContext();
+        boolean needed = ImageStore.getInstance(mContext).getReferenceObjects().stream()
+                .anyMatch(ImageBackfillWorker::needsBackfill);
+        if (needed) {
+            WorkManager.getInstance(mContext)
+                    .enqueueUniqueWork(mContext.getString(R.string.work_image_backfill_id),
+                            ExistingWorkPolicy.KEEP,
+                            new OneTimeWorkRequest.Builder(ImageBackfillWorker.class).build());
+        }
+    }
+
+    private static boolean needsBackfill(ImageObject img) {
+        return img.getFingerprint() == null || needsThumbnailBackfill(img);
+    }
+
+    private static boolean needsThumbnailBackfill(ImageObject img) {
+        // The perceptual hash is always computed along with the placeholder
+        return !img.isColorSet() || img.getPlaceholder() == null;
+    }
+
+    /**
+     * Gets the fingerprint of the source an image was imported from, which is the fingerprint of
+     * the stored file if that still has the source's bytes. Only a recompressed image (stored as
+     * WebP) can differ, which takes the full hash to tell.
+     *
+     * @param context the context
+     * @param img     the image
+     * @return the fingerprint, or empty if it cannot be known
+     */
+    private static String getSourceFingerprint(Context context, ImageObject img) {
+        if ("image/webp".equals(img.getType()) && !img.getId().equals(StorageUtils.getHash(context, img.getUri())))
+            return "";
+        String fingerprint = StorageUtils.getFingerprint(context, img.getUri(), StorageUtils.getFileSize(img.getUri()));
+        return (fingerprint == null) ? "" : fingerprint;
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        ImageStore store = ImageStore.getInstance(context);
+        store.ensureLoaded(context);
+        int unsaved = 0;
+        try {
+            for (ImageObject img : store.getReferenceObjects()) {
+                if (isStopped())
+                    break;
+                if (!needsBackfill(img))
+                    continue;
+                if (img.getFingerprint() == null)
+                    store.setFingerprint(img, getSourceFingerprint(context, img));
+                if (needsThumbnailBackfill(img)) {
+                    byte[] thumbnail = StorageUtils.getThumbnail(context, img.getId(), img.getUri());
+                    Bitmap bm = (thumbnail == null) ? null : BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+                    if (bm == null) {
+                        // Not decodable, don't try again on every start
+                        if (!img.isColorSet())
+                            store.setColor(img, context.getColor(androidx.cardview.R.color.cardview_dark_background));
+                        if (img.getPlaceholder() == null)
+                            store.setPlaceholder(img, "");
+                    } else {
+                        if (!img.isColorSet())
+                            store.setColor(img, ImageObject.getColorFromBitmap(context, bm));
+                        if (!img.isPerceptualHashSet())
+                            store.setPerceptualHash(img, PerceptualHash.dHash(bm));
+                        if (img.getPlaceholder() == null)
+                            store.setPlaceholder(img, BlurHash.encode(bm));
+                    }
+                }
+                if (++unsaved == SAVE_BATCH_SIZE) {
+                    store.saveToPrefs();
+                    unsaved = 0;
+                }
+                Thread.sleep(PAUSE_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            if (unsaved > 0)
+                store.saveToPrefs();
+        }
+        return Result.success();
+    }
+}
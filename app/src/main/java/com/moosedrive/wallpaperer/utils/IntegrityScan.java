@@ -0,0 +1,98 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+
+import com.moosedrive.wallpaperer.data.ImageObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Checks stored images for missing or changed files.
+ * Files are checked with a single stat call each (see StorageUtils.getFileSignature); only
+ * sources that are not plain files are opened through the content resolver. The images are
+ * checked in parallel, a slice at a time with a short pause in between so the scan never hogs the
+ * disk. The scan does not change anything: the caller applies the result, typically as one
+ * batched change to the ImageStore.
+ */
+public class IntegrityScan {
+    private static final int SLICE_SIZE = 256;
+    private static final long PAUSE_MILLIS = 10;
+
+    private final List<String> missing = new CopyOnWriteArrayList<>();
+    private final List<String> changed = new CopyOnWriteArrayList<>();
+    private final Map<String, String> signatures = new ConcurrentHashMap<>();
+
+    private IntegrityScan() {
+    }
+
+    /**
+     * Scan the images.
+     *
+     * @param context           the context
+     * @param images            the images to check
+     * @param compareSignatures also report images whose file signature differs from the one
+     *                          recorded
+     * @return the result
+     * @throws InterruptedException the scan was interrupted
+     */
+    public static IntegrityScan scan(Context context, ImageObject[] images, boolean compareSignatures) throws InterruptedException {
+        IntegrityScan scan = new IntegrityScan();
+        for (int start = 0; start < images.length; start += SLICE_SIZE) {
+            if (start > 0)
+                Thread.sleep(PAUSE_MILLIS);
+            Arrays.stream(images, start, Math.min(images.length, start + SLICE_SIZE))
+                    .parallel()
+                    .forEach(img -> scan.check(context, img, compareSignatures));
+        }
+        return scan;
+    }
+
+    private void check(Context context, ImageObject img, boolean compareSignatures) {
+        if (!"file".equals(img.getUri().getScheme())) {
+            if (!StorageUtils.sourceExists(context, img.getUri()))
+                missing.add(img.getId());
+            return;
+        }
+        String signature = StorageUtils.getFileSignature(img.getUri());
+        if (signature == null) {
+            missing.add(img.getId());
+        } else if (compareSignatures && !signature.equals(img.getSignature())) {
+            // Images saved before signatures existed only record theirs
+            if (img.getSignature() != null)
+                changed.add(img.getId());
+            signatures.put(img.getId(), signature);
+        }
+    }
+
+    /**
+     * Gets the images whose source no longer exists.
+     *
+     * @return the ids
+     */
+    public List<String> getMissing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Gets the images whose file changed since its signature was recorded.
+     *
+     * @return the ids
+     */
+    public List<String> getChanged() {
+        return Collections.unmodifiableList(changed);
+    }
+
+    /**
+     * Gets the current file signatures of the images whose recorded signature is out of date.
+     *
+     * @return the signatures by image id
+     */
+    public Map<String, String> getSignatures() {
+        return Collections.unmodifiableMap(signatures);
+    }
+}
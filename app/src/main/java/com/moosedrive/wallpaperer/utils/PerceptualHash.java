@@ -0,0 +1,100 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.graphics.Bitmap;
+
+/**
+ * 64-bit perceptual (difference) hash of an image.
+ * Resized, recompressed or re-saved copies of the same picture produce hashes that differ in only
+ * a few bits, so the Hamming distance between two hashes is a measure of visual similarity.
+ */
+public class PerceptualHash {
+    /**
+     * The largest Hamming distance at which two images are considered near-duplicates.
+     */
+    public static final int SIMILAR_DISTANCE = 6;
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private PerceptualHash() {
+    }
+
+    /**
+     * Compute the difference hash (dHash) of a bitmap.
+     * The bitmap is reduced to a 9x8 grid of average luminance values and each bit records
+     * whether a cell is brighter than its right-hand neighbour.
+     *
+     * @param source the bitmap, typically the decoded thumbnail
+     * @return the 64-bit hash
+     */
+    public static long dHash(Bitmap source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        long[] sums = new long[HASH_WIDTH * HASH_HEIGHT];
+        int[] counts = new int[HASH_WIDTH * HASH_HEIGHT];
+        int[] row = new int[width];
+        // Box-average every source pixel into its grid cell, one row at a time
+        for (int y = 0; y < height; y++) {
+            source.getPixels(row, 0, width, 0, y, width, 1);
+            accumulate(row, 0, y, width, height, sums, counts);
+        }
+        return hash(sums, counts);
+    }
+
+    /**
+     * Compute the difference hash of an image given as ARGB pixels.
+     *
+     * @param pixels the pixels, row by row
+     * @param width  the image width
+     * @param height the image height
+     * @return the 64-bit hash, the same dHash(Bitmap) returns for the image
+     */
+    static long dHash(int[] pixels, int width, int height) {
+        long[] sums = new long[HASH_WIDTH * HASH_HEIGHT];
+        int[] counts = new int[HASH_WIDTH * HASH_HEIGHT];
+        for (int y = 0; y < height; y++)
+            accumulate(pixels, y * width, y, width, height, sums, counts);
+        return hash(sums, counts);
+    }
+
+    private static void accumulate(int[] pixels, int offset, int y, int width, int height, long[] sums, int[] counts) {
+        int cellRow = y * HASH_HEIGHT / height * HASH_WIDTH;
+        for (int x = 0; x < width; x++) {
+            int cell = cellRow + x * HASH_WIDTH / width;
+            sums[cell] += luminance(pixels[offset + x]);
+            counts[cell]++;
+        }
+    }
+
+    private static long hash(long[] sums, int[] counts) {
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                int cell = y * HASH_WIDTH + x;
+                hash <<= 1;
+                if (average(sums, counts, cell) > average(sums, counts, cell + 1))
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * The number of bits that differ between two hashes.
+     *
+     * @param hash1 a hash
+     * @param hash2 another hash
+     * @return Hamming distance, 0..64
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static long average(long[] sums, int[] counts, int cell) {
+        return (counts[cell] == 0) ? 0 : sums[cell] / counts[cell];
+    }
+
+    private static int luminance(int color) {
+        // Color.red() etc., spelled out so the hash can be computed off the device
+        return (((color >> 16) & 0xFF) * 299 + ((color >> 8) & 0xFF) * 587 + (color & 0xFF) * 114) / 1000;
+    }
+}
@@ -12,6 +12,12 @@ import com.moosedrive.wallpaperer.R;
  */
 public class PreferenceHelper {
     private static SharedPreferences sharedPreferences = null;
+    private static volatile PreferenceSnapshot snapshot = null;
+    /**
+     * Rebuilds the snapshot on every change. Held here because SharedPreferences only keeps weak
+     * references to its listeners.
+     */
+    private static SharedPreferences.OnSharedPreferenceChangeListener snapshotUpdater = null;
 
     private PreferenceHelper(){}
 
@@ -23,7 +29,47 @@ public class PreferenceHelper {
      * @return the scheduled wallpaper change in epoch milliseconds
      */
     public static long getScheduledWallpaperChange(Context context) {
-        return getLastWallpaperQueue(context) + getWallpaperDelay(context);
+        return getSnapshot(context).scheduledWallpaperChange;
+    }
+
+    /**
+     * Gets the current preference snapshot, for reads on hot paths.
+     *
+     * @param context the context
+     * @return the snapshot
+     */
+    public static PreferenceSnapshot getSnapshot(Context context) {
+        PreferenceSnapshot current = snapshot;
+        if (current == null) {
+            synchronized (PreferenceHelper.class) {
+                if (snapshotUpdater == null) {
+                    Context appContext = context.getApplicationContext();
+                    snapshotUpdater = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                        @Override
+                        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                            refreshSnapshot(appContext);
+                        }
+                    };
+                    getInstance(context).registerOnSharedPreferenceChangeListener(snapshotUpdater);
+                }
+            }
+            current = refreshSnapshot(context);
+        }
+        return current;
+    }
+
+    /**
+     * Rebuild the preference snapshot now, e.g. right after a write that must be seen at once.
+     * Snapshots are built and published under the class lock, so one built from older values can
+     * never replace a newer one.
+     *
+     * @param context the context
+     * @return the new snapshot
+     */
+    public static synchronized PreferenceSnapshot refreshSnapshot(Context context) {
+        PreferenceSnapshot current = new PreferenceSnapshot(context, getInstance(context));
+        snapshot = current;
+        return current;
     }
 
     /**
@@ -32,7 +78,7 @@ public class PreferenceHelper {
      * @return columns preference
      */
     public static int getGridLayoutColumns(Context context){
-        return Integer.parseInt(getInstance(context).getString(context.getString(R.string.preference_columns), "2"));
+        return getSnapshot(context).gridLayoutColumns;
     }
 
     /**
@@ -41,8 +87,19 @@ public class PreferenceHelper {
      * @return true if stats are desired in preferences
      */
     public static boolean showStats(Context context){
-        return getInstance(context).getBoolean(context.getString(R.string.preference_card_stats), false);
+        return getSnapshot(context).showStats;
     }
+    /**
+     * Preference indicating if images that look like one already in the library should be skipped
+     * during import.
+     *
+     * @param context the context
+     * @return true if near-duplicate images should not be added
+     */
+    public static boolean skipSimilar(Context context) {
+        return getSnapshot(context).skipSimilar;
+    }
+
     /**
      * Gets last wallpaper queue.
      *
@@ -50,7 +107,7 @@ public class PreferenceHelper {
      * @return the last time wallpaper was queued in epoch milliseconds
      */
     public static long getLastWallpaperQueue(Context context) {
-        return getInstance(context).getLong(context.getString(R.string.preference_worker_last_queue), 0);
+        return getSnapshot(context).lastWallpaperQueue;
     }
 
     /**
@@ -60,10 +117,17 @@ public class PreferenceHelper {
      * @return the wallpaper delay in milliseconds
      */
     public static long getWallpaperDelay(Context context) {
-        String delay = getInstance(context).getString(context.getString(R.string.preference_time_delay), "00:15");
-        int hours = Integer.parseInt(delay.split(":")[0]);
-        int minutes = Integer.parseInt(delay.split(":")[1]);
-        return (hours * 60L + minutes) * 60 * 1000L;
+        return getSnapshot(context).wallpaperDelay;
+    }
+
+    /**
+     * Preference indicating if wallpapers should be cropped to the screen.
+     *
+     * @param context the context
+     * @return true if wallpapers should be cropped
+     */
+    public static boolean imageCrop(Context context) {
+        return getSnapshot(context).imageCrop;
     }
 
     /**
@@ -73,7 +137,51 @@ public class PreferenceHelper {
      * @return true if preference indicates that wallpaper should only change during idle condition
      */
     public static boolean idleOnly(Context context) {
-        return getInstance(context).getBoolean(context.getApplicationContext().getResources().getString(R.string.preference_idle), false);
+        return getSnapshot(context).idleOnly;
+    }
+
+    /**
+     * Gets the version of the on-disk storage layout (see StorageUtils.STORAGE_LAYOUT_PACKED).
+     *
+     * @param context the context
+     * @return the storage layout version, 0 for the original flat layout
+     */
+    public static int getStorageLayout(Context context) {
+        return getInstance(context).getInt(context.getString(R.string.preference_storage_layout), 0);
+    }
+
+    /**
+     * Record that the on-disk storage has been migrated to a new layout.
+     *
+     * @param context the context
+     * @param layout  the storage layout version
+     */
+    public static void setStorageLayout(Context context, int layout) {
+        SharedPreferences.Editor prefEdit = getInstance(context).edit();
+        prefEdit.putInt(context.getString(R.string.preference_storage_layout), layout);
+        prefEdit.apply();
+    }
+
+    /**
+     * Gets the id of the last image verified by the ContentScrubber.
+     *
+     * @param context the context
+     * @return the image id, or an empty string to start from the beginning
+     */
+    public static String getScrubCursor(Context context) {
+        return getInstance(context).getString(context.getString(R.string.preference_scrub_cursor), "");
+    }
+
+    /**
+     * Record the id of the last image verified by the ContentScrubber.
+     *
+     * @param context the context
+     * @param id      the image id, or an empty string to start over
+     */
+    public static void setScrubCursor(Context context, String id) {
+        SharedPreferences.Editor prefEdit = getInstance(context).edit();
+        prefEdit.putString(context.getString(R.string.preference_scrub_cursor), id);
+        prefEdit.apply();
     }
 
     private static SharedPreferences getInstance(Context context) {
@@ -93,6 +201,8 @@ public class PreferenceHelper {
         SharedPreferences.Editor prefEdit = getInstance(context).edit();
         prefEdit.putBoolean("isActive", bool);
         prefEdit.apply();
+        // Listeners only run later, on the main thread
+        refreshSnapshot(context);
     }
 
     /**
@@ -102,6 +212,6 @@ public class PreferenceHelper {
      * @return the boolean
      */
     public static boolean isActive(Context context) {
-        return getInstance(context).getBoolean("isActive", false);
+        return getSnapshot(context).active;
     }
 }
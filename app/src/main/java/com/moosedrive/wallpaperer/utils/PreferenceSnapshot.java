@@ -0,0 +1,74 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.moosedrive.wallpaperer.R;
+
+/**
+ * Immutable, parsed copy of the preferences read on hot paths (animation frames, card binds).
+ * A new snapshot is built by PreferenceHelper whenever a preference changes; reading one is a
+ * plain field access.
+ */
+public class PreferenceSnapshot {
+    /**
+     * The desired interval between wallpaper changes in milliseconds.
+     */
+    public final long wallpaperDelay;
+    /**
+     * The last time a wallpaper change was queued, in epoch milliseconds.
+     */
+    public final long lastWallpaperQueue;
+    /**
+     * The next scheduled wallpaper change, in epoch milliseconds.
+     */
+    public final long scheduledWallpaperChange;
+    /**
+     * The preferred number of grid columns.
+     */
+    public final int gridLayoutColumns;
+    /**
+     * Show file details on the cards.
+     */
+    public final boolean showStats;
+    /**
+     * Skip images that look like one already in the library during import.
+     */
+    public final boolean skipSimilar;
+    /**
+     * Only change the wallpaper while the device is idle.
+     */
+    public final boolean idleOnly;
+    /**
+     * The wallpaper scheduler is running.
+     */
+    public final boolean active;
+    /**
+     * Crop wallpapers to the screen.
+     */
+    public final boolean imageCrop;
+
+    PreferenceSnapshot(Context context, SharedPreferences prefs) {
+        wallpaperDelay = parseDelay(prefs.getString(context.getString(R.string.preference_time_delay), "00:15"));
+        lastWallpaperQueue = prefs.getLong(context.getString(R.string.preference_worker_last_queue), 0);
+        scheduledWallpaperChange = lastWallpaperQueue + wallpaperDelay;
+        gridLayoutColumns = Integer.parseInt(prefs.getString(context.getString(R.string.preference_columns), "2"));
+        showStats = prefs.getBoolean(context.getString(R.string.preference_card_stats), false);
+        skipSimilar = prefs.getBoolean(context.getString(R.string.preference_skip_similar), false);
+        idleOnly = prefs.getBoolean(context.getString(R.string.preference_idle), false);
+        active = prefs.getBoolean("isActive", false);
+        imageCrop = prefs.getBoolean(context.getString(R.string.preference_image_crop), true);
+    }
+
+    /**
+     * Parse a "HH:mm" delay.
+     *
+     * @param delay the delay preference
+     * @return the delay in milliseconds
+     */
+    private static long parseDelay(String delay) {
+        int hours = Integer.parseInt(delay.split(":")[0]);
+        int minutes = Integer.parseInt(delay.split(":")[1]);
+        return (hours * 60L + minutes) * 60 * 1000L;
+    }
+}
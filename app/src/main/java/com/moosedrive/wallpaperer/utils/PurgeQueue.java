@@ -0,0 +1,104 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.moosedrive.wallpaperer.data.ImageObject;
+import com.moosedrive.wallpaperer.data.ImageStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent queue of removed images whose files are waiting to be deleted.
+ * Removals are recorded by id and stored path in their own preferences file, so pending deletes
+ * survive process death, and the queue is drained in batches on the BackgroundExecutor.
+ */
+public class PurgeQueue {
+    private static final String PREFS_NAME = "purge_queue";
+    private static final int BATCH_SIZE = 64;
+    private static final AtomicBoolean draining = new AtomicBoolean(false);
+    private static final AtomicBoolean drainRequested = new AtomicBoolean(false);
+
+    private PurgeQueue() {
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Queue the stored file and thumbnail of a removed image for deletion and start draining.
+     *
+     * @param context the context
+     * @param img     the removed image
+     */
+    public static void enqueue(Context context, ImageObject img) {
+        String path = img.getUri().getPath();
+        if (path == null)
+            return;
+        getPrefs(context).edit().putString(img.getId(), new File(path).getAbsolutePath()).apply();
+        drain(context);
+    }
+
+    /**
+     * Delete everything in the queue in the background.
+     * Entries whose image or file is back in the ImageStore (e.g. the same content was added again)
+     * are dropped without deleting anything. Only call once the ImageStore has been loaded.
+     *
+     * @param context the context
+     */
+    public static void drain(Context context) {
+        Context mContext = context.getApplicationContext();
+        drainRequested.set(true);
+        if (!draining.compareAndSet(false, true))
+            return;
+        BackgroundExecutor.getExecutor().execute(() -> {
+            try {
+                while (drainRequested.getAndSet(false)) {
+                    int drained;
+                    do {
+                        drained = drainBatch(mContext);
+                    } while (drained == BATCH_SIZE);
+                }
+            } finally {
+                draining.set(false);
+            }
+            // A request may have arrived between the last check and releasing the flag
+            if (drainRequested.get())
+                drain(mContext);
+        });
+    }
+
+    /**
+     * Delete up to BATCH_SIZE queued entries and remove them from the queue in a single edit.
+     *
+     * @param context the context
+     * @return the number of entries taken from the queue
+     */
+    private static int drainBatch(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        ImageStore store = ImageStore.getInstance(context);
+        List<String> done = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (done.size() == BATCH_SIZE)
+                break;
+            String id = entry.getKey();
+            if (store.getImageObject(id) == null)
+                StorageUtils.removeThumbnails(context, id);
+            if (entry.getValue() instanceof String) {
+                store.deleteIfUnreferenced(new File((String) entry.getValue()));
+            }
+            done.add(id);
+        }
+        if (!done.isEmpty()) {
+            SharedPreferences.Editor editor = prefs.edit();
+            done.forEach(editor::remove);
+            editor.apply();
+        }
+        return done.size();
+    }
+}
@@ -0,0 +1,184 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.moosedrive.wallpaperer.R;
+import com.moosedrive.wallpaperer.data.ImageObject;
+import com.moosedrive.wallpaperer.data.ImageStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Mark-and-sweep garbage collector for the image storage.
+ * The mark phase snapshots the ids and stored file paths of the library into hash sets. The sweep
+ * phase then walks the storage, thumbnail and content folders in short time slices and deletes
+ * every file that is not in the snapshot, and drops unreferenced thumbnails from the ThumbnailPack.
+ */
+public class StorageCollector extends Worker {
+    /**
+     * Output data key for the number of bytes freed by a collection.
+     */
+    public static final String RECLAIMED_BYTES = "reclaimed_bytes";
+    /**
+     * Input data key for the minimum age of a file before it may be collected.
+     * Younger files may belong to an import that has not reached the store yet.
+     */
+    public static final String MIN_AGE_MILLIS = "min_age_millis";
+    private static final long SLICE_MILLIS = 50;
+    private static final long PAUSE_MILLIS = 20;
+    private static final long PERIODIC_MIN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long IMMEDIATE_MIN_AGE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private long sliceStart;
+    private long minAge;
+
+    public StorageCollector(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedule a daily collection that only runs while the device is idle and charging.
+     *
+     * @param context the context
+     */
+    public static void schedulePeriodic(Context context) {
+        Context mContext = context.getApplicationContext();
+        PeriodicWorkRequest request = new PeriodicWorkRequest
+                .Builder(StorageCollector.class, 1, TimeUnit.DAYS)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiresDeviceIdle(true)
+                        .setRequiresCharging(true)
+                        .build())
+                .setInputData(new Data.Builder().putLong(MIN_AGE_MILLIS, PERIODIC_MIN_AGE_MILLIS).build())
+                .build();
+        WorkManager.getInstance(mContext)
+                .enqueueUniquePeriodicWork(mContext.getString(R.string.work_storage_collector_id), ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Run a collection in the background as soon as possible.
+     *
+     * @param context the context
+     * @return the id of the work request (see RECLAIMED_BYTES for its output)
+     */
+    public static UUID collectNow(Context context) {
+        Context mContext = context.getApplicationContext();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(StorageCollector.class)
+                .setInputData(new Data.Builder().putLong(MIN_AGE_MILLIS, IMMEDIATE_MIN_AGE_MILLIS).build())
+                .build();
+        WorkManager.getInstance(mContext)
+                .enqueueUniqueWork(mContext.getString(R.string.work_storage_collector_now_id), ExistingWorkPolicy.REPLACE, request);
+        return request.getId();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        minAge = getInputData().getLong(MIN_AGE_MILLIS, PERIODIC_MIN_AGE_MILLIS);
+        ImageStore store = ImageStore.getInstance(context);
+        store.ensureLoaded(context);
+        // Mark: everything the store or the saved library knows about is live
+        Set<String> liveIds = store.getIdSnapshot();
+        Set<String> livePaths = store.getFileReferenceSnapshot();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            for (ImageObject img : ImageStore.parseJsonArray(new JSONArray(prefs.getString("sources", "[]")))) {
+                liveIds.add(img.getId());
+                Uri uri = img.getUri();
+                if (uri.getPath() != null)
+                    livePaths.add(new File(uri.getPath()).getAbsolutePath());
+            }
+        } catch (JSONException e) {
+            // Without a trustworthy library there is no way to tell what is garbage
+            e.printStackTrace();
+            return Result.failure();
+        }
+        // Sweep
+        long reclaimed;
+        try {
+            sliceStart = System.currentTimeMillis();
+            // Not recursive: the content, thumbnail and thumbnail pack folders are handled separately
+            reclaimed = sweep(StorageUtils.getStorageFolder(context), false, file -> livePaths.contains(file.getAbsolutePath()));
+            reclaimed += sweep(StorageUtils.getContentFolder(context), true, file -> livePaths.contains(file.getAbsolutePath()));
+            reclaimed += sweep(StorageUtils.getThumbnailFolder(context), true, file -> liveIds.contains(file.getName()));
+            yieldSlice();
+            reclaimed += ThumbnailPack.getInstance(context).retainAll(liveIds);
+        } catch (InterruptedException e) {
+            return Result.retry();
+        }
+        return Result.success(new Data.Builder().putLong(RECLAIMED_BYTES, reclaimed).build());
+    }
+
+    /**
+     * Delete every file in a folder that is not live.
+     *
+     * @param folder  the folder to sweep
+     * @param recurse also sweep sub-folders
+     * @param isLive  test for files that must be kept
+     * @return bytes reclaimed
+     * @throws InterruptedException the work was stopped
+     */
+    private long sweep(File folder, boolean recurse, Predicate<File> isLive) throws InterruptedException {
+        long reclaimed = 0;
+        if (!folder.isDirectory())
+            return 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder.toPath())) {
+            for (Path entry : entries) {
+                yieldSlice();
+                File file = entry.toFile();
+                if (file.isDirectory()) {
+                    if (recurse)
+                        reclaimed += sweep(file, true, isLive);
+                } else if (!isLive.test(file)
+                        && System.currentTimeMillis() - file.lastModified() > minAge) {
+                    long length = file.length();
+                    if (file.delete())
+                        reclaimed += length;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Pause briefly once the current time slice is used up, so the sweep never hogs the disk.
+     *
+     * @throws InterruptedException the work was stopped
+     */
+    private void yieldSlice() throws InterruptedException {
+        if (isStopped())
+            throw new InterruptedException();
+        if (System.currentTimeMillis() - sliceStart > SLICE_MILLIS) {
+            Thread.sleep(PAUSE_MILLIS);
+            sliceStart = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.moosedrive.wallpaperer.data.ImageObject;
+import com.moosedrive.wallpaperer.data.ImageStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Online migration of the image storage to the current layout: images in shard folders (see
+ * StorageUtils.getShardFolder) and thumbnails in the ThumbnailPack.
+ * Runs on the BackgroundExecutor while the app is in use. Each image is hard linked into its new
+ * location before the ImageStore is pointed at it, so a reader never sees a missing file. The old
+ * names are left for the StorageCollector, which only removes them once the saved library no
+ * longer refers to them. Thumbnail files are moved into the pack; until the migration finishes
+ * StorageUtils.getThumbnail also picks up any it finds on demand.
+ */
+public class StorageMigration {
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+
+    private StorageMigration() {
+    }
+
+    /**
+     * Start the migration in the background, unless storage is already in the current layout.
+     * Only call once the ImageStore has been loaded.
+     *
+     * @param context the context
+     */
+    public static void migrateIfNeeded(Context context) {
+        Context mContext = context.getApplicationContext();
+        if (PreferenceHelper.getStorageLayout(mContext) >= StorageUtils.STORAGE_LAYOUT_PACKED
+                || !running.compareAndSet(false, true))
+            return;
+        BackgroundExecutor.getExecutor().execute(() -> {
+            try {
+                boolean imagesDone = PreferenceHelper.getStorageLayout(mContext) >= StorageUtils.STORAGE_LAYOUT_SHARDED
+                        || migrateImages(mContext);
+                if (imagesDone)
+                    PreferenceHelper.setStorageLayout(mContext, StorageUtils.STORAGE_LAYOUT_SHARDED);
+                if (imagesDone && migrateThumbnails(mContext, StorageUtils.getThumbnailFolder(mContext)))
+                    PreferenceHelper.setStorageLayout(mContext, StorageUtils.STORAGE_LAYOUT_PACKED);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Move every stored image into its shard folder.
+     *
+     * @param context the context
+     * @return true if every image is now in the sharded layout
+     */
+    private static boolean migrateImages(Context context) {
+        ImageStore store = ImageStore.getInstance(context);
+        boolean complete = true;
+        boolean moved = false;
+        for (ImageObject img : store.getReferenceObjects()) {
+            String path = img.getUri().getPath();
+            if (path == null || !"file".equals(img.getUri().getScheme()))
+                continue;
+            File oldFile = new File(path);
+            File newFile = StorageUtils.getContentFile(context, img.getId());
+            if (oldFile.getAbsolutePath().equals(newFile.getAbsolutePath()))
+                continue;
+            try {
+                if (!newFile.exists()) {
+                    File shardFolder = newFile.getParentFile();
+                    if (shardFolder != null && !shardFolder.exists() && !shardFolder.mkdirs())
+                        throw new IOException("Unable to create " + shardFolder.getPath());
+                    linkOrCopy(oldFile, newFile);
+                }
+                store.setUri(img, Uri.fromFile(newFile));
+                moved = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                complete = false;
+            }
+        }
+        if (moved)
+            store.saveToPrefs();
+        return complete;
+    }
+
+    /**
+     * Move every thumbnail file under a folder into the ThumbnailPack.
+     *
+     * @param context the context
+     * @param folder  the thumbnail folder or one of its shard folders
+     * @return true if no thumbnail files are left
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static boolean migrateThumbnails(Context context, File folder) {
+        if (!folder.isDirectory())
+            return true;
+        ThumbnailPack pack = ThumbnailPack.getInstance(context);
+        boolean complete = true;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder.toPath())) {
+            for (Path entry : entries) {
+                File file = entry.toFile();
+                if (file.isDirectory()) {
+                    complete &= migrateThumbnails(context, file);
+                    file.delete();
+                } else {
+                    if (!pack.contains(file.getName()))
+                        pack.put(file.getName(), Files.readAllBytes(entry));
+                    file.delete();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return complete;
+    }
+
+    /**
+     * Give a file a second name, copying it if the file system does not support hard links.
+     *
+     * @param source the existing file
+     * @param target the new name
+     * @throws IOException the file could not be linked or copied
+     */
+    private static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            File copy = new File(target.getParentFile(), StorageUtils.getImportFileName());
+            Files.copy(source.toPath(), copy.toPath());
+            if (!copy.renameTo(target))
+                throw new IOException("Unable to move " + source.getPath());
+        }
+    }
+}
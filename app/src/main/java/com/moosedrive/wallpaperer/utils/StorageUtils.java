@@ -28,20 +28,26 @@ import org.json.JSONException;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -54,6 +60,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 import java.util.Stack;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -64,7 +71,34 @@ import java.util.zip.ZipOutputStream;
 public class StorageUtils {
 
     private static final String THUMBDIR = "thumbs";
+    private static final String IMAGEDIR = "images";
+    private static final int SHARD_WIDTH = 2;
+    /**
+     * Storage layout version in which images and thumbnails are stored in shard folders.
+     */
+    public static final int STORAGE_LAYOUT_SHARDED = 1;
+    /**
+     * Storage layout version in which thumbnails are stored in the ThumbnailPack.
+     */
+    public static final int STORAGE_LAYOUT_PACKED = 2;
+    /**
+     * Thumbnail levels, in pixels square, smallest first.
+     */
+    public static final int[] THUMBNAIL_SIZES = {128, 256, 512, 1024};
+    /**
+     * The thumbnail level created at import and used for colors and perceptual hashes.
+     */
+    public static final int BASE_THUMBNAIL_SIZE = 512;
+    private static final String THUMBNAIL_LEVEL_SEPARATOR = "@";
+    private static final String IMPORT_PREFIX = ".import_";
     private static final int BUFFER_SIZE = 4096;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final int FINGERPRINT_SAMPLE_SIZE = 16 * 1024;
+    private static final long DIGEST_MAP_SIZE = 64L * 1024 * 1024;
+    /**
+     * Digest algorithm used for ImageObject ids. Changing it would change the id of every image.
+     */
+    private static final String DIGEST_ALGORITHM = "MD5";
 
     public static Bitmap resizeBitmapCenter(int newWidth, int newHeight, Bitmap source, boolean crop) {
         int sourceWidth = source.getWidth();
@@ -119,22 +153,127 @@ public class StorageUtils {
         return image;
     }
 
-    public static String getSHA256(InputStream stream, int bufferSize) throws NoSuchAlgorithmException, IOException {
+    /**
+     * Create a new message digest suitable for ImageObject ids.
+     *
+     * @return the digest
+     * @throws NoSuchAlgorithmException the digest algorithm is not available
+     */
+    public static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    }
+
+    /**
+     * Format a completed digest as an ImageObject id.
+     *
+     * @param digest the digest bytes
+     * @return hexadecimal string
+     */
+    public static String toHex(byte[] digest) {
+        return new BigInteger(1, digest).toString(16);
+    }
+
+    public static String getDigest(InputStream stream, int bufferSize) throws NoSuchAlgorithmException, IOException {
         final byte[] buffer = new byte[bufferSize];
-        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        final MessageDigest digest = newDigest();
 
         int bytesRead;
         while ((bytesRead = stream.read(buffer)) != -1) {
             digest.update(buffer, 0, bytesRead);
         }
 
-        return new BigInteger(1, digest.digest()).toString(16);
+        return toHex(digest.digest());
     }
 
+    /**
+     * Compute the full content hash (the ImageObject id) of a source.
+     * File-scheme sources are memory-mapped, everything else is streamed through a large buffer.
+     *
+     * @param context the context
+     * @param uri     the source
+     * @return the hash, or null if the source could not be read
+     */
     public static String getHash(Context context, Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            try (FileInputStream fis = new FileInputStream(uri.getPath());
+                 FileChannel channel = fis.getChannel()) {
+                MessageDigest digest = newDigest();
+                long size = channel.size();
+                for (long position = 0; position < size; position += DIGEST_MAP_SIZE) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(DIGEST_MAP_SIZE, size - position));
+                    digest.update(buffer);
+                }
+                return toHex(digest.digest());
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
         try (InputStream source = context.getContentResolver().openInputStream(uri)) {
 
-            return getSHA256(source, 1024);
+            return getDigest(source, COPY_BUFFER_SIZE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Compute a cheap fingerprint of a source from its size and three sampled blocks (head,
+     * middle and tail). Identical sources always have identical fingerprints, so a fingerprint
+     * that matches no known image proves the source is new without reading all of it.
+     *
+     * @param context the context
+     * @param uri     the source
+     * @param size    the size of the source in bytes
+     * @return the fingerprint, or null if the size is unknown or the source could not be read
+     */
+    public static String getFingerprint(Context context, Uri uri, long size) {
+        if (size <= 0)
+            return null;
+        long[] offsets = {0,
+                Math.max(0, size / 2 - FINGERPRINT_SAMPLE_SIZE / 2),
+                Math.max(0, size - FINGERPRINT_SAMPLE_SIZE)};
+        try (InputStream source = context.getContentResolver().openInputStream(uri)) {
+            MessageDigest digest = newDigest();
+            if (source instanceof FileInputStream) {
+                // Seekable source -- read the samples in place
+                FileChannel channel = ((FileInputStream) source).getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SAMPLE_SIZE);
+                for (long offset : offsets) {
+                    buffer.clear();
+                    int bytesRead = 0;
+                    while (buffer.hasRemaining() && bytesRead >= 0) {
+                        bytesRead = channel.read(buffer, offset + buffer.position());
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+            } else {
+                // Sequential source -- skip forward between the samples
+                byte[] buffer = new byte[FINGERPRINT_SAMPLE_SIZE];
+                long position = 0;
+                for (long offset : offsets) {
+                    if (offset < position)
+                        offset = position;
+                    while (position < offset) {
+                        long skipped = source.skip(offset - position);
+                        if (skipped <= 0)
+                            break;
+                        position += skipped;
+                    }
+                    int sampled = 0;
+                    int bytesRead = 0;
+                    while (sampled < buffer.length && bytesRead >= 0) {
+                        bytesRead = source.read(buffer, sampled, buffer.length - sampled);
+                        if (bytesRead > 0)
+                            sampled += bytesRead;
+                    }
+                    digest.update(buffer, 0, sampled);
+                    position += sampled;
+                }
+            }
+            return size + ":" + toHex(digest.digest());
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -146,50 +285,331 @@ public class StorageUtils {
         return new File(sPictureStorage);
     }
 
-    public static Uri getThumbnailUri(Context context, ImageObject imgObj) {
-        @SuppressWarnings("ConstantConditions") File thumbnailFile = new File(new File(imgObj.getUri().getPath()).getParentFile().getPath() + File.separator + THUMBDIR + File.separator + imgObj.getId());
-        if (!thumbnailFile.exists()) {
-            try {
-                Uri newThumbUri = saveThumbnail(context, imgObj.getUri(), imgObj.getId());
-                if (newThumbUri != null)
-                    thumbnailFile = new File(newThumbUri.getPath());
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+    /**
+     * Gets the content-addressed image folder. Images in this folder are named by their content
+     * hash (the ImageObject id), so identical content is only ever stored once.
+     *
+     * @param context the context
+     * @return the image folder (may not exist yet)
+     */
+    public static File getContentFolder(Context context) {
+        return new File(getStorageFolder(context).getPath() + File.separator + IMAGEDIR);
+    }
+
+    /**
+     * Gets the stored image file for a content hash.
+     *
+     * @param context the context
+     * @param id      the ImageObject id
+     * @return the image file (may not exist)
+     */
+    public static File getContentFile(Context context, String id) {
+        return new File(getShardFolder(getContentFolder(context), id), id);
+    }
+
+    /**
+     * Gets the shard folder for an id under a storage folder. Files are spread over two levels of
+     * folders named by the first two pairs of characters of the id (e.g. ab/cd/abcdef...), which
+     * keeps every folder small enough to list and look up quickly in very large libraries.
+     *
+     * @param folder the storage folder
+     * @param id     the ImageObject id
+     * @return the shard folder (may not exist yet)
+     */
+    public static File getShardFolder(File folder, String id) {
+        if (id.length() < SHARD_WIDTH * 2)
+            return folder;
+        String lower = id.toLowerCase(Locale.ROOT);
+        return new File(new File(folder, lower.substring(0, SHARD_WIDTH)), lower.substring(SHARD_WIDTH, SHARD_WIDTH * 2));
+    }
+
+    /**
+     * Gets the thumbnail folder.
+     *
+     * @param context the context
+     * @return the thumbnail folder (may not exist yet)
+     */
+    public static File getThumbnailFolder(Context context) {
+        return new File(getStorageFolder(context).getPath() + File.separator + THUMBDIR);
+    }
+
+    /**
+     * Gets the thumbnail file for an image, as stored before thumbnails moved into the
+     * ThumbnailPack. Only read to migrate old thumbnails.
+     *
+     * @param context the context
+     * @param id      the ImageObject id
+     * @return the thumbnail file (may not exist)
+     */
+    public static File getThumbnailFile(Context context, String id) {
+        return new File(getShardFolder(getThumbnailFolder(context), id), id);
+    }
+
+    /**
+     * Gets a unique temporary file name for an image being imported into the content folder.
+     *
+     * @return the file name
+     */
+    public static String getImportFileName() {
+        return IMPORT_PREFIX + getRandomAlphaNumeric(8);
+    }
+
+    /**
+     * Move an imported image into the content-addressed store under its content hash.
+     * A stored file with the same hash is replaced (its bytes are the same source).
+     *
+     * @param context    the context
+     * @param importFile the imported file in the content folder
+     * @param id         the content hash (ImageObject id)
+     * @return the uri of the stored image
+     * @throws IOException the file could not be moved
+     */
+    public static Uri storeContentFile(Context context, File importFile, String id) throws IOException {
+        File contentFile = getContentFile(context, id);
+        File shardFolder = contentFile.getParentFile();
+        if (shardFolder != null && !shardFolder.exists() && !shardFolder.mkdirs())
+            throw new IOException("Unable to create " + shardFolder.getPath());
+        if (!importFile.renameTo(contentFile))
+            throw new IOException("Unable to store image " + id);
+        return Uri.fromFile(contentFile);
+    }
+
+    /**
+     * Gets the thumbnail size to use for a card: the smallest level at least as large as the card,
+     * or the largest level for bigger cards.
+     *
+     * @param cardSize the card width and height in pixels
+     * @return one of THUMBNAIL_SIZES
+     */
+    public static int getThumbnailSize(int cardSize) {
+        for (int size : THUMBNAIL_SIZES) {
+            if (size >= cardSize)
+                return size;
         }
-        return Uri.fromFile(thumbnailFile);
+        return THUMBNAIL_SIZES[THUMBNAIL_SIZES.length - 1];
     }
 
-    public static Uri saveThumbnail(Context context, Uri sourceuri, String destFileName) throws IOException {
-        String destinationDir = getStorageFolder(context).getPath() + File.separator + THUMBDIR;
-        boolean directorySetupResult;
-        File destDir = new File(destinationDir);
-        if (!destDir.exists()) {
-            directorySetupResult = destDir.mkdirs();
-        } else if (!destDir.isDirectory()) {
-            directorySetupResult = replaceFileWithDir(destinationDir);
-        } else {
-            directorySetupResult = true;
+    /**
+     * Gets the ThumbnailPack key of a thumbnail level. The base level is stored under the plain
+     * image id (as it was before there were levels); other levels are "id@size".
+     *
+     * @param id   the ImageObject id
+     * @param size one of THUMBNAIL_SIZES
+     * @return the key
+     */
+    public static String getThumbnailKey(String id, int size) {
+        return (size == BASE_THUMBNAIL_SIZE) ? id : id + THUMBNAIL_LEVEL_SEPARATOR + size;
+    }
+
+    /**
+     * Gets the image id of a ThumbnailPack key (see getThumbnailKey).
+     *
+     * @param key the key
+     * @return the ImageObject id
+     */
+    public static String getThumbnailImageId(String key) {
+        int separator = key.indexOf(THUMBNAIL_LEVEL_SEPARATOR);
+        return (separator < 0) ? key : key.substring(0, separator);
+    }
+
+    /**
+     * Remove every thumbnail level of an image from the ThumbnailPack.
+     *
+     * @param context the context
+     * @param id      the ImageObject id
+     */
+    public static void removeThumbnails(Context context, String id) {
+        ThumbnailPack pack = ThumbnailPack.getInstance(context);
+        for (int size : THUMBNAIL_SIZES)
+            pack.remove(getThumbnailKey(id, size));
+    }
+
+    /**
+     * Gets the compressed base level thumbnail of an image.
+     *
+     * @param context the context
+     * @param id      the ImageObject id
+     * @param source  the image source, used if the thumbnail must be created
+     * @return the compressed thumbnail, or null if the source could not be decoded
+     */
+    public static byte[] getThumbnail(Context context, String id, Uri source) {
+        return getThumbnail(context, id, source, BASE_THUMBNAIL_SIZE);
+    }
+
+    /**
+     * Gets a compressed thumbnail of an image from the ThumbnailPack, creating the level if needed.
+     * Levels smaller than the base are scaled down from the base level; larger levels are decoded
+     * from the source. Thumbnails left as files by older versions are moved into the pack.
+     *
+     * @param context the context
+     * @param id      the ImageObject id
+     * @param source  the image source, used if the thumbnail must be created
+     * @param size    one of THUMBNAIL_SIZES
+     * @return the compressed thumbnail, or null if the source could not be decoded
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static byte[] getThumbnail(Context context, String id, Uri source, int size) {
+        ThumbnailPack pack = ThumbnailPack.getInstance(context);
+        String key = getThumbnailKey(id, size);
+        byte[] thumbnail = pack.get(key);
+        if (thumbnail != null)
+            return thumbnail;
+        try {
+            if (size < BASE_THUMBNAIL_SIZE) {
+                byte[] base = getThumbnail(context, id, source, BASE_THUMBNAIL_SIZE);
+                if (base == null)
+                    return null;
+                Bitmap baseBm = BitmapFactory.decodeByteArray(base, 0, base.length);
+                if (baseBm == null)
+                    return null;
+                return writeThumbnail(context, Bitmap.createScaledBitmap(baseBm, size, size, true), key);
+            }
+            if (size == BASE_THUMBNAIL_SIZE) {
+                for (File oldFile : new File[]{getThumbnailFile(context, id), new File(getThumbnailFolder(context), id)}) {
+                    if (oldFile.isFile()) {
+                        thumbnail = Files.readAllBytes(oldFile.toPath());
+                        pack.put(key, thumbnail);
+                        oldFile.delete();
+                        return thumbnail;
+                    }
+                }
+            }
+            Bitmap thumbnailBm = decodeThumbnail(context, source, size);
+            return (thumbnailBm == null) ? null : writeThumbnail(context, thumbnailBm, key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return thumbnail;
         }
-        if (directorySetupResult) {
-            String destination = destinationDir + File.separator + destFileName;
-            File destinationFile = new File(destination);
-
-            try (InputStream input = context.getContentResolver().openInputStream(sourceuri);
-                 BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destination))) {
-                // Recompress before writing to new file
-                Bitmap originalBm = BitmapFactory.decodeStream(input);
-                originalBm = resizeBitmapCenter(512, 512, originalBm, true);
-                originalBm.compress(Bitmap.CompressFormat.WEBP, 50, bos);
-                return Uri.fromFile(destinationFile);
+    }
+
+    /**
+     * Decode an image source into a (center cropped) base level thumbnail bitmap.
+     *
+     * @param context   the context
+     * @param sourceuri the image source
+     * @return the thumbnail bitmap, or null if the source could not be decoded
+     * @throws IOException the source could not be opened
+     */
+    public static Bitmap decodeThumbnail(Context context, Uri sourceuri) throws IOException {
+        return decodeThumbnail(context, sourceuri, BASE_THUMBNAIL_SIZE);
+    }
+
+    /**
+     * Decode an image source into a (center cropped) square thumbnail bitmap.
+     * The preview embedded in the EXIF data is used if it is big enough; otherwise the source is
+     * decoded at the largest power-of-two reduction that still covers the thumbnail, so the cost
+     * depends on the thumbnail size rather than the source resolution.
+     *
+     * @param context   the context
+     * @param sourceuri the image source
+     * @param size      the thumbnail width and height
+     * @return the thumbnail bitmap, or null if the source could not be decoded
+     * @throws IOException the source could not be opened
+     */
+    public static Bitmap decodeThumbnail(Context context, Uri sourceuri, int size) throws IOException {
+        Bitmap originalBm = decodeExifPreview(context, sourceuri, size);
+        if (originalBm == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream input = context.getContentResolver().openInputStream(sourceuri)) {
+                BitmapFactory.decodeStream(input, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0)
+                return null;
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, size);
+            options.inJustDecodeBounds = false;
+            try (InputStream input = context.getContentResolver().openInputStream(sourceuri)) {
+                originalBm = BitmapFactory.decodeStream(input, null, options);
             }
+        }
+        if (originalBm == null)
+            return null;
+        return resizeBitmapCenter(size, size, originalBm, true);
+    }
 
+    /**
+     * Decode the preview embedded in an image's EXIF data, if it covers a thumbnail.
+     *
+     * @param context   the context
+     * @param sourceuri the image source
+     * @param size      the thumbnail width and height
+     * @return the preview, or null if there is none or it is too small
+     */
+    private static Bitmap decodeExifPreview(Context context, Uri sourceuri, int size) {
+        try (InputStream input = context.getContentResolver().openInputStream(sourceuri)) {
+            if (input == null)
+                return null;
+            ExifInterface exifData = new ExifInterface(input);
+            byte[] preview = exifData.getThumbnailBytes();
+            if (preview == null)
+                return null;
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(preview, 0, preview.length, options);
+            if (Math.min(options.outWidth, options.outHeight) < size)
+                return null;
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, size);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeByteArray(preview, 0, preview.length, options);
+        } catch (IOException | RuntimeException e) {
+            // Not every image type has EXIF data
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * Gets the largest power-of-two sample size that keeps both dimensions of a decoded image at
+     * least as large as a square thumbnail.
+     *
+     * @param width  the image width
+     * @param height the image height
+     * @param size   the thumbnail width and height
+     * @return the sample size, at least 1
+     */
+    private static int getSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= size)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Compress a thumbnail bitmap into the ThumbnailPack.
+     *
+     * @param context   the context
+     * @param thumbnail the thumbnail bitmap (see decodeThumbnail)
+     * @param key       the ThumbnailPack key (see getThumbnailKey)
+     * @return the compressed thumbnail
+     * @throws IOException the thumbnail could not be written
+     */
+    public static byte[] writeThumbnail(Context context, Bitmap thumbnail, String key) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.WEBP, 50, bos);
+        byte[] compressed = bos.toByteArray();
+        ThumbnailPack.getInstance(context).put(key, compressed);
+        return compressed;
     }
 
     public static Uri saveBitmap(Context context, Uri sourceUri, long maxSizeCompressed, String destinationDir, String destFileName, boolean recompress) throws IOException {
+        return saveBitmap(context, sourceUri, maxSizeCompressed, destinationDir, destFileName, recompress, null);
+    }
+
+    /**
+     * Copy (or recompress) a source image into storage.
+     * If a digest is provided, every byte of the source is fed through it while copying, so the
+     * content hash is computed without a separate pass over the source.
+     *
+     * @param context           the context
+     * @param sourceUri         the source image
+     * @param maxSizeCompressed the size of the source; the original is kept if recompressing would be larger
+     * @param destinationDir    the storage directory
+     * @param destFileName      the file name in the storage directory
+     * @param recompress        recompress the image as WEBP
+     * @param digest            digest to update with the source bytes, or null
+     * @return the uri of the stored image
+     * @throws IOException the source could not be read or the image could not be written
+     */
+    public static Uri saveBitmap(Context context, Uri sourceUri, long maxSizeCompressed, String destinationDir, String destFileName, boolean recompress, MessageDigest digest) throws IOException {
         boolean directorySetupResult;
         File destDir = new File(destinationDir);
         if (!destDir.exists()) {
@@ -202,18 +622,22 @@ public class StorageUtils {
         if (directorySetupResult) {
             String destination = destinationDir + File.separator + destFileName;
             File destinationFile = null;
+            boolean digested = digest == null;
             if (recompress) {
-                try (InputStream input = context.getContentResolver().openInputStream(sourceUri);
+                try (InputStream input = digestStream(context.getContentResolver().openInputStream(sourceUri), digest);
                      BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destination))) {
                     // Recompress before writing to new file
                     Bitmap originalBm = BitmapFactory.decodeStream(input);
+                    // The decoder may stop early; the digest must still see the whole source
+                    drain(input);
+                    digested = true;
                     originalBm.compress(Bitmap.CompressFormat.WEBP, 75, bos);
                     destinationFile = new File(destination);
                 }
             }
             // Copy the original if requested, or if the compressed version is bigger
             if (!recompress || (maxSizeCompressed > 0 && destinationFile.length() > maxSizeCompressed)) {
-                try (BufferedInputStream input = new BufferedInputStream(context.getContentResolver().openInputStream(sourceUri))) {
+                try (BufferedInputStream input = new BufferedInputStream(digestStream(context.getContentResolver().openInputStream(sourceUri), (digested) ? null : digest), COPY_BUFFER_SIZE)) {
                     writeFile(destination, input);
                 }
             }
@@ -224,14 +648,24 @@ public class StorageUtils {
     private static void writeFile(String destination, BufferedInputStream bis) throws IOException {
         try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(destination))) {
             // Write to new file unchanged
-            int originalSize = bis.available();
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = bis.read(buf)) != -1) {
+                bos.write(buf, 0, bytesRead);
+            }
+        }
+    }
 
-                byte[] buf = new byte[originalSize];
-                while (bis.read(buf) != -1) {
-                    bos.write(buf);
-                }
+    private static InputStream digestStream(InputStream input, MessageDigest digest) throws FileNotFoundException {
+        if (input == null)
+            throw new FileNotFoundException();
+        return (digest == null) ? input : new DigestInputStream(input, digest);
+    }
 
-        }
+    private static void drain(InputStream input) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        //noinspection StatementWithEmptyBody
+        while (input.read(buf) != -1) ;
     }
 
     private static boolean replaceFileWithDir(String path) {
@@ -252,6 +686,28 @@ public class StorageUtils {
         return 0;
     }
 
+    /**
+     * Gets a cheap signature of a stored file, its size and modification time, which changes when
+     * the file is replaced or rewritten.
+     *
+     * @param uri the file uri
+     * @return the signature, or null if the file does not exist
+     */
+    public static String getFileSignature(Uri uri) {
+        if (uri == null || uri.getPath() == null)
+            return null;
+        try {
+            // One stat call for existence, size and modification time
+            BasicFileAttributes attribs = Files.readAttributes(Paths.get(uri.getPath()), BasicFileAttributes.class);
+            return attribs.size() + ":" + attribs.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Checks if the storage item for the image exists.
      *
@@ -299,54 +755,6 @@ public class StorageUtils {
         return result;
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static void cleanUpImage(String destinationDir, ImageObject img) {
-        File destDir = new File(destinationDir);
-        File[] ls = destDir.listFiles();
-        if (ls != null) {
-            for (File f : ls) {
-                if (f.isFile() && img.getName().equals(f.getName())) {
-                    @SuppressWarnings("ConstantConditions") File thumbnail = new File(
-                            f.getParentFile().getPath()
-                                    + File.separator
-                                    + THUMBDIR
-                                    + File.separator
-                                    + img.getId());
-                    if (thumbnail.exists())
-                        thumbnail.delete();
-                    f.delete();
-
-                }
-            }
-        }
-    }
-
-    public static void CleanUpOrphans(Context context, String destinationDir) {
-        File destDir = new File(destinationDir);
-        ImageStore is = ImageStore.getInstance(context);
-        File[] ls = destDir.listFiles();
-        if (ls != null) {
-            for (File f : ls) {
-                if (f.isFile() && is.getImageObjectByName(f.getName()) == null) {
-                    //noinspection ResultOfMethodCallIgnored
-                    f.delete();
-                }
-            }
-        }
-        File thumbDir = new File(destDir + File.separator + THUMBDIR);
-        if (thumbDir.exists()) {
-            ls = thumbDir.listFiles();
-            if (ls != null) {
-                for (File f : ls) {
-                    if (f.isFile() && is.getImageObject(f.getName()) == null) {
-                        //noinspection ResultOfMethodCallIgnored
-                        f.delete();
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * Gets creation date. If it is not available, returns 0 (epoch time).
      *
@@ -583,7 +991,7 @@ public class StorageUtils {
                             textBuilder.append((char) c);
                         }
 
-                    objs = ImageStore.parseJsonArray(context, new JSONArray(textBuilder.toString()), true);
+                    objs = ImageStore.parseJsonArray(new JSONArray(textBuilder.toString()));
                     zipEntry = zipIn.getNextEntry();
                 } else {
                     zipEntry = zipIn.getNextEntry();
@@ -597,7 +1005,8 @@ public class StorageUtils {
         long lastProgressUpdate = System.currentTimeMillis();
         if (objs.size() > 0) {
             //read all files from ZIP and slot into the
-            ArrayList<ImageObject> col = new ArrayList<>(store.getReferenceObjects());
+            // The new images are added to the store in one transaction at the end
+            ArrayList<ImageObject> col = new ArrayList<>();
             try (ZipInputStream zipIn = new ZipInputStream(context.getContentResolver().openInputStream(backupZipUri));
                  BufferedInputStream bis = new BufferedInputStream(zipIn)) {
                 ZipEntry zipEntry = zipIn.getNextEntry();
@@ -606,10 +1015,12 @@ public class StorageUtils {
                     //check if the filename exists in the manifest
                     ImageObject img = objs.stream().filter(object -> object.getId().equals(thisEntry.getName())).findFirst().orElse(null);
                     if (img != null && store.getImageObject(img.getId()) == null) {
-                        File fImageStorageFolder = StorageUtils.getStorageFolder(context);
-                        String destination = fImageStorageFolder.getPath() + File.separator + img.getName();
-                        writeFile(destination, bis);
-                        img.setUri(Uri.fromFile(new File(destination)));
+                        File fImageStorageFolder = StorageUtils.getContentFolder(context);
+                        if (!fImageStorageFolder.exists() && !fImageStorageFolder.mkdirs())
+                            throw new IOException("Unable to create " + fImageStorageFolder.getPath());
+                        File importFile = new File(fImageStorageFolder, getImportFileName());
+                        writeFile(importFile.getPath(), bis);
+                        img.setUri(storeContentFile(context, importFile, img.getId()));
                         img.generateThumbnail(context);
                         col.add(img);
                     }
@@ -0,0 +1,711 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Thumbnail storage in a single append-only pack file.
+ * Every thumbnail (or removal) is appended to the pack as a self-describing record:
+ * <pre>
+ * int magic | short id length | id (UTF-8) | int data length (-1 for a removal) | data
+ * </pre>
+ * A memory-mapped open-addressing hash table (the index) maps each id to the offset of its latest
+ * record, so a lookup is a probe in memory and a single positional read, with no per-thumbnail
+ * file to open or stat. Replaced and removed records are dead space; once it dominates the pack,
+ * the live records are compacted into a new pack in the background.
+ * If the index is lost or behind the pack (e.g. the process died mid-write), it is rebuilt by
+ * replaying the pack.
+ */
+public class ThumbnailPack {
+    private static final String PACKDIR = "thumbpack";
+    private static final String PACK_FILE = "thumbs.pack";
+    private static final String INDEX_FILE = "thumbs.idx";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final int RECORD_MAGIC = 0x54504B31;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int REMOVED = -1;
+    private static final long COMPACT_MIN_DEAD_BYTES = 4 * 1024 * 1024;
+    private static ThumbnailPack pack;
+
+    private final File packFile;
+    private final File indexFile;
+    private FileChannel packChannel;
+    private Index index;
+    private boolean compacting = false;
+
+    /**
+     * Open the pack in a folder, creating it if needed.
+     *
+     * @param folder the folder of the pack and index files
+     */
+    ThumbnailPack(File folder) {
+        packFile = new File(folder, PACK_FILE);
+        indexFile = new File(folder, INDEX_FILE);
+        try {
+            if (!folder.exists() && !folder.mkdirs())
+                throw new IOException("Unable to create " + folder.getPath());
+            open();
+        } catch (IOException e) {
+            // Every lookup misses and thumbnails are decoded from their sources instead
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @param context the context
+     * @return the instance
+     */
+    public static synchronized ThumbnailPack getInstance(Context context) {
+        if (pack == null)
+            pack = new ThumbnailPack(new File(StorageUtils.getStorageFolder(context.getApplicationContext()), PACKDIR));
+        return pack;
+    }
+
+    private void open() throws IOException {
+        packChannel = FileChannel.open(packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = Index.open(indexFile);
+        long packLength = packChannel.size();
+        if (index == null || index.getPackLength() > packLength) {
+            if (index != null)
+                index.close();
+            index = Index.create(indexFile, Index.INITIAL_CAPACITY);
+        }
+        if (index.getPackLength() < packLength)
+            replay(index.getPackLength());
+    }
+
+    void close() {
+        try {
+            if (packChannel != null)
+                packChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (index != null)
+            index.close();
+        packChannel = null;
+        index = null;
+    }
+
+    /**
+     * Apply the records at the end of the pack that the index does not cover yet. A trailing
+     * partial record is cut off.
+     * The process may have died after a record was applied to the index but before the pack
+     * length was, so replaying a record must not count its bytes again: the dead bytes are
+     * recounted as everything in the pack that no live record uses.
+     *
+     * @param position the first record not in the index
+     * @throws IOException the pack could not be read
+     */
+    private void replay(long position) throws IOException {
+        long packLength = packChannel.size();
+        while (position < packLength) {
+            Record record = readRecord(packChannel, position, false);
+            if (record == null || position + record.length > packLength)
+                break;
+            apply(index, record, position);
+            position += record.length;
+        }
+        if (position < packLength)
+            packChannel.truncate(position);
+        index.setPackLength(position);
+        index.setDeadBytes(Math.max(0, position - index.getLiveBytes()));
+    }
+
+    private static void apply(Index index, Record record, long position) throws IOException {
+        long key = Index.keyOf(record.id);
+        if (record.removed)
+            index.addDeadBytes(index.remove(key) + record.length);
+        else
+            index.addDeadBytes(index.put(key, position, record.length));
+    }
+
+    /**
+     * Gets a thumbnail.
+     *
+     * @param id the thumbnail key (see StorageUtils.getThumbnailKey)
+     * @return the compressed thumbnail, or null if it is not in the pack
+     */
+    public synchronized byte[] get(String id) {
+        if (index == null)
+            return null;
+        long offset = index.getOffset(Index.keyOf(id));
+        if (offset < 0)
+            return null;
+        try {
+            Record record = readRecord(packChannel, offset, true);
+            // The id check guards against two ids with the same 64-bit key
+            return (record != null && record.id.equals(id)) ? record.data : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the pack holds a thumbnail.
+     *
+     * @param id the thumbnail key (see StorageUtils.getThumbnailKey)
+     * @return true if a thumbnail is stored for the id
+     */
+    public synchronized boolean contains(String id) {
+        return index != null && index.getOffset(Index.keyOf(id)) >= 0;
+    }
+
+    /**
+     * Store a thumbnail, replacing any previous one for the same id.
+     *
+     * @param id   the thumbnail key (see StorageUtils.getThumbnailKey)
+     * @param data the compressed thumbnail
+     * @throws IOException the thumbnail could not be written
+     */
+    public synchronized void put(String id, byte[] data) throws IOException {
+        if (index == null)
+            throw new IOException("Thumbnail pack is not available");
+        long position = index.getPackLength();
+        ByteBuffer record = encodeRecord(id, data);
+        int length = record.remaining();
+        writeFully(packChannel, record, position);
+        index.addDeadBytes(index.put(Index.keyOf(id), position, length));
+        index.setPackLength(position + length);
+        compactIfNeeded();
+    }
+
+    /**
+     * Remove a thumbnail.
+     *
+     * @param id the thumbnail key (see StorageUtils.getThumbnailKey)
+     */
+    public synchronized void remove(String id) {
+        if (!contains(id))
+            return;
+        try {
+            long position = index.getPackLength();
+            ByteBuffer record = encodeRecord(id, null);
+            int length = record.remaining();
+            writeFully(packChannel, record, position);
+            index.addDeadBytes(index.remove(Index.keyOf(id)) + length);
+            index.setPackLength(position + length);
+            compactIfNeeded();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Remove every thumbnail whose image id is not in a set, e.g. those of images deleted all at once.
+     * The record headers are read without holding the lock, so callers are not blocked.
+     *
+     * @param ids the ImageObject ids to keep
+     * @return the number of bytes of thumbnails removed (reclaimed on the next compaction)
+     */
+    public long retainAll(Set<String> ids) {
+        FileChannel channel;
+        List<long[]> live;
+        synchronized (this) {
+            if (index == null)
+                return 0;
+            channel = packChannel;
+            live = index.getLiveEntries();
+        }
+        long removed = 0;
+        try {
+            for (long[] entry : live) {
+                Record record = readRecord(channel, entry[0], false);
+                if (record != null && !ids.contains(StorageUtils.getThumbnailImageId(record.id))) {
+                    remove(record.id);
+                    removed += record.length;
+                }
+            }
+        } catch (IOException e) {
+            // The pack was compacted meanwhile, the rest waits for the next call
+            e.printStackTrace();
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the bytes of replaced and removed records, reclaimed by the next compaction.
+     *
+     * @return the dead bytes
+     */
+    synchronized long getDeadBytes() {
+        return (index == null) ? 0 : index.getDeadBytes();
+    }
+
+    private void compactIfNeeded() {
+        long dead = index.getDeadBytes();
+        if (!compacting && dead > COMPACT_MIN_DEAD_BYTES && dead > index.getPackLength() / 2) {
+            compacting = true;
+            BackgroundExecutor.getExecutor().execute(this::compact);
+        }
+    }
+
+    /**
+     * Copy the live records into a new pack and index, then swap them in.
+     * The bulk of the copy runs without holding the lock (records before the snapshot length
+     * never change); only the records appended meanwhile are copied while locked.
+     */
+    void compact() {
+        File newPackFile = new File(packFile.getPath() + COMPACT_SUFFIX);
+        File newIndexFile = new File(indexFile.getPath() + COMPACT_SUFFIX);
+        //noinspection ResultOfMethodCallIgnored
+        newPackFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        newIndexFile.delete();
+        Index newIndex = null;
+        try (FileChannel newPack = FileChannel.open(newPackFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileChannel oldPack;
+            long snapshotLength;
+            List<long[]> live;
+            synchronized (this) {
+                if (index == null)
+                    return;
+                oldPack = packChannel;
+                snapshotLength = index.getPackLength();
+                live = index.getLiveEntries();
+            }
+            newIndex = Index.create(newIndexFile, Index.capacityFor(live.size()));
+            long position = 0;
+            for (long[] entry : live)
+                position += copyRecord(oldPack, entry[0], (int) entry[1], newPack, newIndex, position);
+            synchronized (this) {
+                long oldLength = index.getPackLength();
+                long oldPosition = snapshotLength;
+                while (oldPosition < oldLength) {
+                    Record record = readRecord(oldPack, oldPosition, false);
+                    if (record == null)
+                        throw new IOException("Corrupt thumbnail pack");
+                    position += copyRecord(oldPack, oldPosition, record.length, newPack, newIndex, position);
+                    oldPosition += record.length;
+                }
+                newIndex.setPackLength(position);
+                newPack.force(true);
+                newIndex.force();
+                close();
+                // Without an index the pack is replayed on open, so a failure between the renames is safe
+                //noinspection ResultOfMethodCallIgnored
+                indexFile.delete();
+                if (!newPackFile.renameTo(packFile) || !newIndexFile.renameTo(indexFile))
+                    throw new IOException("Unable to replace thumbnail pack");
+                newIndex.close();
+                newIndex = null;
+                open();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                if (index == null) {
+                    try {
+                        open();
+                    } catch (IOException e2) {
+                        e2.printStackTrace();
+                        close();
+                    }
+                }
+            }
+        } finally {
+            if (newIndex != null)
+                newIndex.close();
+            //noinspection ResultOfMethodCallIgnored
+            newPackFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            newIndexFile.delete();
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static int copyRecord(FileChannel from, long fromPosition, int length, FileChannel to, Index toIndex, long toPosition) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(from, buffer, fromPosition);
+        buffer.flip();
+        Record record = decodeRecord(buffer.duplicate());
+        if (record == null || record.length != length)
+            throw new IOException("Corrupt thumbnail pack");
+        writeFully(to, buffer, toPosition);
+        apply(toIndex, record, toPosition);
+        return length;
+    }
+
+    private static ByteBuffer encodeRecord(String id, byte[] data) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int dataLength = (data == null) ? 0 : data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + idBytes.length + dataLength);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putShort((short) idBytes.length);
+        buffer.put(idBytes);
+        buffer.putInt((data == null) ? REMOVED : data.length);
+        if (data != null)
+            buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read the record at a position.
+     *
+     * @param channel  the pack
+     * @param position the record offset
+     * @param withData also read the thumbnail bytes
+     * @return the record, or null if there is no valid record at the position
+     * @throws IOException the pack could not be read
+     */
+    private static Record readRecord(FileChannel channel, long position, boolean withData) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(6);
+        if (readFully(channel, header, position) < 6)
+            return null;
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC)
+            return null;
+        int idLength = header.getShort() & 0xFFFF;
+        ByteBuffer rest = ByteBuffer.allocate(idLength + 4);
+        if (readFully(channel, rest, position + 6) < rest.capacity())
+            return null;
+        rest.flip();
+        byte[] idBytes = new byte[idLength];
+        rest.get(idBytes);
+        int dataLength = rest.getInt();
+        // A corrupt length must not turn into a huge allocation
+        if (dataLength < REMOVED || position + RECORD_HEADER_SIZE + idLength + Math.max(dataLength, 0) > channel.size())
+            return null;
+        Record record = new Record(new String(idBytes, StandardCharsets.UTF_8), dataLength);
+        if (withData && !record.removed) {
+            ByteBuffer data = ByteBuffer.allocate(dataLength);
+            if (readFully(channel, data, position + RECORD_HEADER_SIZE + idLength) < dataLength)
+                return null;
+            record.data = data.array();
+        }
+        return record;
+    }
+
+    private static Record decodeRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < RECORD_HEADER_SIZE || buffer.getInt() != RECORD_MAGIC)
+            return null;
+        int idLength = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < idLength + 4)
+            return null;
+        byte[] idBytes = new byte[idLength];
+        buffer.get(idBytes);
+        int dataLength = buffer.getInt();
+        if (dataLength < REMOVED)
+            return null;
+        return new Record(new String(idBytes, StandardCharsets.UTF_8), dataLength);
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+    }
+
+    private static class Record {
+        final String id;
+        final boolean removed;
+        final int length;
+        byte[] data;
+
+        Record(String id, int dataLength) {
+            this.id = id;
+            this.removed = dataLength == REMOVED;
+            this.length = RECORD_HEADER_SIZE + id.getBytes(StandardCharsets.UTF_8).length + Math.max(dataLength, 0);
+        }
+    }
+
+    /**
+     * Memory-mapped open-addressing hash table from id key to record offset.
+     * <pre>
+     * header: int magic | int version | int capacity | int used slots | long pack length | long dead bytes
+     * slot:   long key (0 = empty) | long offset (-1 = removed) | int record length | int unused
+     * </pre>
+     */
+    private static class Index {
+        static final int INITIAL_CAPACITY = 1024;
+        private static final int MAGIC = 0x54494458;
+        private static final int VERSION = 1;
+        private static final int HEADER_SIZE = 32;
+        private static final int SLOT_SIZE = 24;
+        private static final int CAPACITY = 8;
+        private static final int USED = 12;
+        private static final int PACK_LENGTH = 16;
+        private static final int DEAD_BYTES = 24;
+        private static final float MAX_LOAD = 0.6f;
+
+        private final File file;
+        private FileChannel channel;
+        private MappedByteBuffer map;
+        private int capacity;
+
+        private Index(File file, FileChannel channel, MappedByteBuffer map) {
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+            this.capacity = map.getInt(CAPACITY);
+        }
+
+        /**
+         * Open an existing index.
+         *
+         * @param file the index file
+         * @return the index, or null if it does not exist or is not valid
+         */
+        static Index open(File file) {
+            if (!file.exists() || file.length() < HEADER_SIZE)
+                return null;
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                int capacity = map.getInt(CAPACITY);
+                if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || capacity <= 0
+                        || Integer.bitCount(capacity) != 1 || channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                    channel.close();
+                    return null;
+                }
+                return new Index(file, channel, map);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * Create a new, empty index, replacing any existing file.
+         *
+         * @param file     the index file
+         * @param capacity the number of slots, a power of two
+         * @return the index
+         * @throws IOException the index could not be created
+         */
+        static Index create(File file, int capacity) throws IOException {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(CAPACITY, capacity);
+            return new Index(file, channel, map);
+        }
+
+        static int capacityFor(int entries) {
+            int capacity = INITIAL_CAPACITY;
+            while (entries + 1 > capacity * MAX_LOAD)
+                capacity <<= 1;
+            return capacity;
+        }
+
+        /**
+         * 64-bit FNV-1a hash of an id. 0 marks an empty slot, so it is never returned.
+         *
+         * @param id the thumbnail key (see StorageUtils.getThumbnailKey)
+         * @return the key
+         */
+        static long keyOf(String id) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+                hash ^= (b & 0xFF);
+                hash *= 0x100000001b3L;
+            }
+            return (hash == 0) ? 1 : hash;
+        }
+
+        long getPackLength() {
+            return map.getLong(PACK_LENGTH);
+        }
+
+        void setPackLength(long length) {
+            map.putLong(PACK_LENGTH, length);
+        }
+
+        long getDeadBytes() {
+            return map.getLong(DEAD_BYTES);
+        }
+
+        void addDeadBytes(long bytes) {
+            map.putLong(DEAD_BYTES, getDeadBytes() + bytes);
+        }
+
+        void setDeadBytes(long bytes) {
+            map.putLong(DEAD_BYTES, bytes);
+        }
+
+        /**
+         * Gets the total length of the live records.
+         *
+         * @return the live bytes
+         */
+        long getLiveBytes() {
+            long bytes = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                if (map.getLong(position) != 0 && map.getLong(position + 8) >= 0)
+                    bytes += map.getInt(position + 16);
+            }
+            return bytes;
+        }
+
+        private int slotPosition(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+
+        /**
+         * Find the slot for a key.
+         *
+         * @param key the key
+         * @return the slot holding the key, or -(first free slot + 1)
+         */
+        private int find(long key) {
+            int mask = capacity - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            int reusable = -1;
+            while (true) {
+                long slotKey = map.getLong(slotPosition(slot));
+                if (slotKey == key)
+                    return slot;
+                if (slotKey == 0)
+                    return -((reusable >= 0 ? reusable : slot) + 1);
+                if (reusable < 0 && map.getLong(slotPosition(slot) + 8) < 0)
+                    reusable = slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * Gets the offset of the live record for a key.
+         *
+         * @param key the key
+         * @return the offset, or -1 if there is none
+         */
+        long getOffset(long key) {
+            int slot = find(key);
+            return (slot < 0) ? -1 : map.getLong(slotPosition(slot) + 8);
+        }
+
+        /**
+         * Point a key at a record.
+         *
+         * @param key    the key
+         * @param offset the record offset
+         * @param length the record length
+         * @return the length of the record that was replaced (now dead), or 0
+         * @throws IOException the index could not grow
+         */
+        int put(long key, long offset, int length) throws IOException {
+            int slot = find(key);
+            int replaced = 0;
+            if (slot >= 0) {
+                if (map.getLong(slotPosition(slot) + 8) >= 0)
+                    replaced = map.getInt(slotPosition(slot) + 16);
+            } else {
+                slot = -slot - 1;
+                if (map.getLong(slotPosition(slot)) == 0) {
+                    if (map.getInt(USED) + 1 > capacity * MAX_LOAD) {
+                        grow();
+                        return put(key, offset, length);
+                    }
+                    map.putInt(USED, map.getInt(USED) + 1);
+                }
+            }
+            int position = slotPosition(slot);
+            map.putLong(position, key);
+            map.putLong(position + 8, offset);
+            map.putInt(position + 16, length);
+            return replaced;
+        }
+
+        /**
+         * Mark a key as removed.
+         *
+         * @param key the key
+         * @return the length of the record that was removed (now dead), or 0
+         */
+        int remove(long key) {
+            int slot = find(key);
+            if (slot < 0 || map.getLong(slotPosition(slot) + 8) < 0)
+                return 0;
+            map.putLong(slotPosition(slot) + 8, -1);
+            return map.getInt(slotPosition(slot) + 16);
+        }
+
+        /**
+         * Gets the offset and length of every live record, in pack order.
+         *
+         * @return {offset, length} pairs
+         */
+        List<long[]> getLiveEntries() {
+            List<long[]> entries = new ArrayList<>();
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                if (map.getLong(position) != 0 && map.getLong(position + 8) >= 0)
+                    entries.add(new long[]{map.getLong(position + 8), map.getInt(position + 16)});
+            }
+            entries.sort((a, b) -> Long.compare(a[0], b[0]));
+            return entries;
+        }
+
+        /**
+         * Rehash into a table twice the size, swapped in by renaming over the index file.
+         *
+         * @throws IOException the larger index could not be written
+         */
+        private void grow() throws IOException {
+            File newFile = new File(file.getPath() + ".grow");
+            Index larger = create(newFile, capacity * 2);
+            for (int slot = 0; slot < capacity; slot++) {
+                int position = slotPosition(slot);
+                long key = map.getLong(position);
+                if (key != 0 && map.getLong(position + 8) >= 0)
+                    larger.put(key, map.getLong(position + 8), map.getInt(position + 16));
+            }
+            larger.setPackLength(getPackLength());
+            larger.addDeadBytes(getDeadBytes());
+            larger.force();
+            if (!newFile.renameTo(file)) {
+                larger.close();
+                throw new IOException("Unable to grow thumbnail index");
+            }
+            channel.close();
+            channel = larger.channel;
+            map = larger.map;
+            capacity = larger.capacity;
+        }
+
+        void force() {
+            map.force();
+        }
+
+        void close() {
+            try {
+                map.force();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
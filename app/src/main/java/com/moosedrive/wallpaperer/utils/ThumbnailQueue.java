@@ -0,0 +1,189 @@
+package com.moosedrive.wallpaperer.utils;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+/**
+ * Thumbnail generation queue ordered by distance from the visible part of the image grid.
+ * Jobs for cards on screen run first, then those nearest to it; jobs without a grid position
+ * (e.g. at import) run last. A job's priority is fixed while it waits in the queue; when the
+ * grid scrolls, the waiting jobs are taken out, given new priorities and put back in one pass on
+ * a background thread, and those far away from the new viewport are cancelled (the card is bound
+ * again, and re-queued, if the user scrolls back).
+ * Each job delivers its result exactly once, through its callback: the thumbnail on a queue
+ * thread, or the cancellation on the thread that cancelled it.
+ */
+public class ThumbnailQueue {
+    private static final int THREADS = 2;
+    /**
+     * Waiting jobs further than this many viewports away are cancelled.
+     */
+    private static final int CANCEL_VIEWPORTS = 4;
+    private static ThumbnailQueue queue;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicBoolean reorderPending = new AtomicBoolean(false);
+    /**
+     * The visible adapter positions, first and last, replaced as a whole.
+     */
+    private volatile int[] viewport = {0, -1};
+
+    private ThumbnailQueue() {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(64, (a, b) -> Integer.compare(((Job) a).priority, ((Job) b).priority)));
+    }
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized ThumbnailQueue getInstance() {
+        if (queue == null)
+            queue = new ThumbnailQueue();
+        return queue;
+    }
+
+    /**
+     * Queue a thumbnail for generation (or loading, if it already exists).
+     *
+     * @param context  the context
+     * @param id       the ImageObject id
+     * @param source   the image source
+     * @param size     the thumbnail level (see StorageUtils.getThumbnailSize)
+     * @param position the current adapter position of the image, -1 if it is not being displayed;
+     *                 read again whenever the queue is reordered, so cards that moved are ranked
+     *                 by where they are now
+     * @param callback receives the result
+     * @return the job, which may be cancelled
+     */
+    public Job submit(Context context, String id, Uri source, int size, IntSupplier position, Callback callback) {
+        Job job = new Job(context.getApplicationContext(), id, source, size, position, callback);
+        job.priority = job.distance(viewport);
+        executor.execute(job);
+        return job;
+    }
+
+    /**
+     * Tell the queue which adapter positions are on screen. Waiting jobs are reordered, and those
+     * far outside the new viewport are cancelled, in the background.
+     *
+     * @param first the first visible adapter position
+     * @param last  the last visible adapter position
+     */
+    public void setViewport(int first, int last) {
+        int[] current = viewport;
+        if (first == current[0] && last == current[1])
+            return;
+        viewport = new int[]{first, last};
+        // Scroll events come faster than a reorder; one pass catches up with all of them
+        if (reorderPending.compareAndSet(false, true))
+            BackgroundExecutor.getExecutor().execute(this::reorder);
+    }
+
+    private void reorder() {
+        reorderPending.set(false);
+        int[] current = viewport;
+        int cancelDistance = Math.max(1, current[1] - current[0] + 1) * CANCEL_VIEWPORTS;
+        List<Runnable> waiting = new ArrayList<>();
+        executor.getQueue().drainTo(waiting);
+        for (Runnable runnable : waiting) {
+            Job job = (Job) runnable;
+            // Only changed while out of the queue, so the heap order stays valid
+            job.priority = job.distance(current);
+            if (job.priority != Integer.MAX_VALUE && job.priority > cancelDistance)
+                job.cancel();
+            else
+                executor.getQueue().offer(job);
+        }
+    }
+
+    /**
+     * Receives the result of a job.
+     */
+    public interface Callback {
+        /**
+         * The job ran.
+         *
+         * @param thumbnail the compressed thumbnail, or null if it could not be created
+         */
+        void onThumbnail(@Nullable byte[] thumbnail);
+
+        /**
+         * The job was cancelled before it ran, either by its owner or by the queue because its
+         * card is far out of view. Nothing is wrong with the image, but a caller waiting for the
+         * result must still be answered.
+         */
+        default void onCancelled() {
+        }
+    }
+
+    /**
+     * A thumbnail job.
+     */
+    public class Job implements Runnable {
+        private final Context context;
+        private final String id;
+        private final Uri source;
+        private final int size;
+        private final IntSupplier position;
+        private final Callback callback;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private int priority;
+
+        private Job(Context context, String id, Uri source, int size, IntSupplier position, Callback callback) {
+            this.context = context;
+            this.id = id;
+            this.source = source;
+            this.size = size;
+            this.position = position;
+            this.callback = callback;
+        }
+
+        /**
+         * Distance from a viewport in adapter positions: 0 when visible, MAX_VALUE without a
+         * position.
+         */
+        private int distance(int[] viewport) {
+            int firstVisible = viewport[0];
+            int lastVisible = viewport[1];
+            int position = this.position.getAsInt();
+            if (position < 0)
+                return Integer.MAX_VALUE;
+            if (position < firstVisible)
+                return firstVisible - position;
+            if (position > lastVisible)
+                return position - Math.max(lastVisible, firstVisible);
+            return 0;
+        }
+
+        /**
+         * Cancel the job if it has not run yet. The callback is told it was cancelled.
+         */
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                executor.remove(this);
+                callback.onCancelled();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (done.get())
+                return;
+            byte[] thumbnail = StorageUtils.getThumbnail(context, id, source, size);
+            if (done.compareAndSet(false, true))
+                callback.onThumbnail(thumbnail);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.moosedrive.wallpaperer.wallpaper;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.StatFs;
 import android.provider.DocumentsContract;
@@ -11,11 +12,15 @@ import com.moosedrive.wallpaperer.R;
 import com.moosedrive.wallpaperer.data.ImageObject;
 import com.moosedrive.wallpaperer.data.ImageStore;
 import com.moosedrive.wallpaperer.utils.BackgroundExecutor;
+import com.moosedrive.wallpaperer.utils.BlurHash;
+import com.moosedrive.wallpaperer.utils.PerceptualHash;
+import com.moosedrive.wallpaperer.utils.PreferenceHelper;
 import com.moosedrive.wallpaperer.utils.StorageUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashSet;
@@ -100,6 +105,7 @@ public class WallpaperManager {
      */
     public synchronized void addWallpapers(Context context, @NonNull HashSet<Uri> sources, ImageStore store) {
         boolean recompress = androidx.preference.PreferenceManager.getDefaultSharedPreferences(context).getBoolean(context.getResources().getString(R.string.preference_recompress), false);
+        boolean skipSimilar = PreferenceHelper.skipSimilar(context);
         loadingErrors = new HashSet<>();
         if (sources.size() > 0) {
             loadingDoneSignal = new CountDownLatch(sources.size());
@@ -107,6 +113,8 @@ public class WallpaperManager {
                 wal.onWallpaperLoadingStarted(sources.size(), null);
             for (Uri uri : sources) {
                 Thread t = new Thread(() -> {
+                    // Duplicate checks need the whole library, which may still be loading
+                    store.ensureLoaded(context);
                     File fImageStorageFolder = StorageUtils.getStorageFolder(context);
                     StatFs stats = new StatFs(fImageStorageFolder.getAbsolutePath());
                     long bytesAvailable = stats.getAvailableBlocksLong() * stats.getBlockSizeLong();
@@ -115,36 +123,82 @@ public class WallpaperManager {
                     else if (bytesAvailable < MINIMUM_REQUIRED_FREE_SPACE)
                         loadingErrors.add(context.getString(R.string.loading_error_precheck_low_space));
                     else {
-                        String hash = StorageUtils.getHash(context, uri);
-                        if (hash == null)
-                            hash = UUID.randomUUID().toString();
-                        if (store.getImageObject(hash) == null) {
+                        long sourceSize = Long.parseLong(StorageUtils.getFileAttrib(uri, DocumentsContract.Document.COLUMN_SIZE, context));
+                        String fingerprint = StorageUtils.getFingerprint(context, uri, sourceSize);
+                        // Only read the whole source up front if the cheap fingerprint cannot prove it is new;
+                        // it cannot while some stored images have no fingerprint to compare with
+                        String hash = null;
+                        if (fingerprint == null || store.hasFingerprint(fingerprint) || store.hasUnfingerprinted()) {
+                            hash = StorageUtils.getHash(context, uri);
+                            if (hash == null)
+                                hash = UUID.randomUUID().toString();
+                        }
+                        if (hash == null || store.getImageObject(hash) == null) {
                             // Get file modification date from file attributes (if available, 0 otherwise)
                             String name = StorageUtils.getFileAttrib(uri, DocumentsContract.Document.COLUMN_DISPLAY_NAME, context);
                             String type = context.getContentResolver().getType(uri);
                             long creationDate = StorageUtils.getCreationDate(context, uri);
                             if (type.startsWith("image/")) {
                                 try {
-                                    String uuid = StorageUtils.getRandomAlphaNumeric(4);
-                                    String filename = name + "_" + uuid;
-                                    long size = Long.parseLong(StorageUtils.getFileAttrib(uri, DocumentsContract.Document.COLUMN_SIZE, context));
-                                    Uri uCopiedFile = StorageUtils.saveBitmap(context, uri, size, fImageStorageFolder.getPath(), filename, recompress);
-                                    if (recompress) type = "image/webp";
-                                    size = StorageUtils.getFileSize(uCopiedFile);
-                                    try {
-                                        // The current date/time, used as creation date/time if all other methods of getting the file's date/time fail
-                                        Date dNow = new Date();
-                                        ImageObject img = new ImageObject(uCopiedFile, hash, filename, size, type, dNow, (creationDate > 0) ? new Date(creationDate) : dNow);
-                                        img.generateThumbnail(context);
-                                        img.setColor(img.getColorFromBitmap(context));
-                                        store.addImageObject(img);
-                                    } catch (NoSuchAlgorithmException | IOException e) {
-                                        e.printStackTrace();
+                                    // The thumbnail decode doubles as the source of the perceptual hash
+                                    Bitmap thumbnail = StorageUtils.decodeThumbnail(context, uri);
+                                    if (thumbnail == null) {
+                                        loadingErrors.add(context.getString(R.string.loading_error_not_an_image));
+                                    } else {
+                                        long perceptualHash = PerceptualHash.dHash(thumbnail);
+                                        if (skipSimilar && !store.reserveDistinct(perceptualHash, PerceptualHash.SIMILAR_DISTANCE, uri.toString())) {
+                                            loadingErrors.add(context.getString(R.string.loading_error_similar));
+                                        } else {
+                                            // Look-alikes later in this batch are checked against the reservation until the image is added
+                                            try {
+                                                // A new source is hashed from the bytes as they are copied
+                                                MessageDigest digest = (hash == null) ? StorageUtils.newDigest() : null;
+                                                Uri uCopiedFile = StorageUtils.saveBitmap(context, uri, sourceSize, StorageUtils.getContentFolder(context).getPath(), StorageUtils.getImportFileName(), recompress, digest);
+                                                if (digest != null)
+                                                    hash = StorageUtils.toHex(digest.digest());
+                                                if (store.getImageObject(hash) != null) {
+                                                    // Same content as an image imported before fingerprints existed
+                                                    //noinspection ResultOfMethodCallIgnored
+                                                    new File(uCopiedFile.getPath()).delete();
+                                                } else {
+                                                    // Stored under its content hash, so the same image arriving by another route shares the file
+                                                    File contentFile = StorageUtils.getContentFile(context, hash);
+                                                    // Keeps a queued purge of the same content from deleting the file before the image is added
+                                                    store.reserveFile(contentFile);
+                                                    try {
+                                                        Uri uStoredFile = StorageUtils.storeContentFile(context, new File(uCopiedFile.getPath()), hash);
+                                                        if (recompress) type = "image/webp";
+                                                        long size = StorageUtils.getFileSize(uStoredFile);
+                                                        try {
+                                                            // The current date/time, used as creation date/time if all other methods of getting the file's date/time fail
+                                                            Date dNow = new Date();
+                                                            ImageObject img = new ImageObject(uStoredFile, hash, name, size, type, dNow, (creationDate > 0) ? new Date(creationDate) : dNow);
+                                                            img.setPerceptualHash(perceptualHash);
+                                                            img.setFingerprint(fingerprint);
+                                                            img.setSignature(StorageUtils.getFileSignature(uStoredFile));
+                                                            StorageUtils.writeThumbnail(context, thumbnail, hash);
+                                                            img.setColor(ImageObject.getColorFromBitmap(context, thumbnail));
+                                                            img.setPlaceholder(BlurHash.encode(thumbnail));
+                                                            store.addImageObject(img);
+                                                        } catch (NoSuchAlgorithmException | IOException e) {
+                                                            e.printStackTrace();
+                                                        }
+                                                    } finally {
+                                                        store.releaseFile(contentFile);
+                                                    }
+                                                }
+                                            } finally {
+                                                if (skipSimilar)
+                                                    store.releaseReservation(perceptualHash, uri.toString());
+                                            }
+                                        }
                                     }
                                 } catch (FileNotFoundException e) {
                                     loadingErrors.add(context.getString(R.string.loading_error_fnf));
                                 } catch (IOException e) {
                                     loadingErrors.add(context.getString(R.string.loading_error_out_of_space));
+                                } catch (NoSuchAlgorithmException e) {
+                                    e.printStackTrace();
                                 }
                             } else {
                                 loadingErrors.add(context.getString(R.string.loading_error_not_an_image));
@@ -54,8 +54,7 @@ public class WallpaperWorker extends Worker {
         super(context, workerParams);
         String imgId = workerParams.getInputData().getString("id");
         store = ImageStore.getInstance(getApplicationContext());
-        if (store.size() == 0)
-            store.updateFromPrefs(getApplicationContext());
+        store.ensureLoaded(getApplicationContext());
         if (imgId != null)
             imgObject = store.getImageObject(imgId);
     }
@@ -118,6 +117,7 @@ public class WallpaperWorker extends Worker {
             SharedPreferences.Editor prefEdit = PreferenceManager.getDefaultSharedPreferences(mContext).edit();
             prefEdit.putLong(mContext.getString(R.string.preference_worker_last_queue), new Date().getTime());
             prefEdit.apply();
+            PreferenceHelper.refreshSnapshot(mContext);
         }
     }
 
@@ -153,7 +153,7 @@ public class WallpaperWorker extends Worker {
                     final Bitmap bitmapSource = BitmapFactory.decodeFileDescriptor(pfd.getFileDescriptor());
                     new Thread(() -> {
                         try {
-                            boolean crop = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getBoolean(getApplicationContext().getString(R.string.preference_image_crop), true);
+                            boolean crop = PreferenceHelper.imageCrop(getApplicationContext());
                             Bitmap bitmap = StorageUtils.resizeBitmapCenter(width, height, bitmapSource, crop);
                             WallpaperManager.getInstance(getApplicationContext()).setBitmap(bitmap);
                         } catch (IOException e) {
@@ -0,0 +1,106 @@
+package com.moosedrive.wallpaperer.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.moosedrive.wallpaperer.utils.PerceptualHash;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class BKTreeTest {
+    @Test
+    public void search_emptyTree_findsNothing() {
+        assertTrue(new BKTree().search(0x1234L, 64).isEmpty());
+    }
+
+    @Test
+    public void search_findsOnlyIdsWithinDistance() {
+        BKTree tree = new BKTree();
+        tree.add(0b0000L, "a");
+        tree.add(0b0001L, "b");
+        tree.add(0b0011L, "c");
+        tree.add(0b1111L, "d");
+        assertEquals(set("a"), new HashSet<>(tree.search(0b0000L, 0)));
+        assertEquals(set("a", "b"), new HashSet<>(tree.search(0b0000L, 1)));
+        assertEquals(set("a", "b", "c"), new HashSet<>(tree.search(0b0000L, 2)));
+        assertEquals(set("c", "d"), new HashSet<>(tree.search(0b1111L, 2)));
+    }
+
+    @Test
+    public void add_sameHash_keepsAllIds() {
+        BKTree tree = new BKTree();
+        tree.add(42L, "a");
+        tree.add(42L, "b");
+        assertEquals(set("a", "b"), new HashSet<>(tree.search(42L, 0)));
+    }
+
+    @Test
+    public void remove_dropsOnlyThatId() {
+        BKTree tree = new BKTree();
+        tree.add(0L, "root");
+        tree.add(1L, "a");
+        tree.add(1L, "b");
+        tree.add(3L, "c");
+        tree.remove(1L, "a");
+        assertEquals(set("root", "b", "c"), new HashSet<>(tree.search(0L, 2)));
+        // The emptied node still routes the search to its children
+        tree.remove(1L, "b");
+        assertEquals(set("c"), new HashSet<>(tree.search(3L, 0)));
+    }
+
+    @Test
+    public void remove_unknownHash_isIgnored() {
+        BKTree tree = new BKTree();
+        tree.add(0L, "a");
+        tree.remove(-1L, "a");
+        assertEquals(set("a"), new HashSet<>(tree.search(0L, 0)));
+    }
+
+    @Test
+    public void clear_removesEverything() {
+        BKTree tree = new BKTree();
+        tree.add(0L, "a");
+        tree.add(7L, "b");
+        tree.clear();
+        assertTrue(tree.search(0L, 64).isEmpty());
+    }
+
+    @Test
+    public void search_matchesLinearScan() {
+        Random random = new Random(1);
+        BKTree tree = new BKTree();
+        List<Long> hashes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // Near copies of a few base hashes, as a library of resized images would have
+            long hash = (i % 10 == 0)
+                    ? random.nextLong()
+                    : hashes.get(random.nextInt(hashes.size())) ^ (1L << random.nextInt(64));
+            hashes.add(hash);
+            tree.add(hash, String.valueOf(i));
+        }
+        for (int q = 0; q < 50; q++) {
+            long query = hashes.get(random.nextInt(hashes.size()));
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < hashes.size(); i++) {
+                if (PerceptualHash.distance(hashes.get(i), query) <= PerceptualHash.SIMILAR_DISTANCE)
+                    expected.add(String.valueOf(i));
+            }
+            List<String> found = tree.search(query, PerceptualHash.SIMILAR_DISTANCE);
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<>(found));
+        }
+    }
+
+    private static Set<String> set(String... ids) {
+        Set<String> set = new HashSet<>();
+        Collections.addAll(set, ids);
+        return set;
+    }
+}
@@ -0,0 +1,54 @@
+package com.moosedrive.wallpaperer.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+public class ReferenceCountsTest {
+    @Test
+    public void sharedFile_staysReferencedUntilLastRelease() {
+        // Two images with the same content hash share one stored file
+        ReferenceCounts counts = new ReferenceCounts();
+        counts.add("/images/abc");
+        counts.add("/images/abc");
+        counts.release("/images/abc");
+        assertTrue(counts.contains("/images/abc"));
+        counts.release("/images/abc");
+        assertFalse(counts.contains("/images/abc"));
+    }
+
+    @Test
+    public void release_unreferenced_isIgnored() {
+        ReferenceCounts counts = new ReferenceCounts();
+        counts.release("/images/abc");
+        assertFalse(counts.contains("/images/abc"));
+        counts.add("/images/abc");
+        assertTrue(counts.contains("/images/abc"));
+    }
+
+    @Test
+    public void keySnapshot_isACopy() {
+        ReferenceCounts counts = new ReferenceCounts();
+        counts.add("/images/abc");
+        Set<String> snapshot = counts.getKeySnapshot();
+        counts.add("/images/def");
+        counts.release("/images/abc");
+        assertEquals(Collections.singleton("/images/abc"), snapshot);
+        assertEquals(Collections.singleton("/images/def"), counts.getKeySnapshot());
+    }
+
+    @Test
+    public void clear_dropsAllReferences() {
+        ReferenceCounts counts = new ReferenceCounts();
+        counts.add("/images/abc");
+        counts.add("/images/abc");
+        counts.clear();
+        assertFalse(counts.contains("/images/abc"));
+        assertTrue(counts.getKeySnapshot().isEmpty());
+    }
+}
@@ -0,0 +1,158 @@
+package com.moosedrive.wallpaperer.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Ordering of the changes of an ImageStore.Transaction, see ImageStore.replay.
+ */
+public class TransactionReplayTest {
+    private Map<String, ImageObject> images;
+    private List<ImageObject> ordered;
+    private List<ImageStore.Op> ops;
+
+    @Before
+    public void setUp() throws Exception {
+        images = new HashMap<>();
+        ordered = new ArrayList<>();
+        ops = new ArrayList<>();
+        for (String id : new String[]{"a", "b", "c"}) {
+            ImageObject img = image(id);
+            images.put(id, img);
+            ordered.add(img);
+        }
+    }
+
+    @Test
+    public void add_appendsInOrder() throws Exception {
+        add(image("d"), -1);
+        add(image("e"), -1);
+        replay();
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), ids());
+    }
+
+    @Test
+    public void add_atPosition() throws Exception {
+        add(image("d"), 0);
+        add(image("e"), 2);
+        replay();
+        assertEquals(Arrays.asList("d", "a", "e", "b", "c"), ids());
+    }
+
+    @Test
+    public void add_afterDelete_positionSkipsDeleted() throws Exception {
+        delete("a");
+        add(image("d"), 1);
+        replay();
+        assertEquals(Arrays.asList("b", "d", "c"), ids());
+    }
+
+    @Test
+    public void add_sameId_replacesImage() throws Exception {
+        ImageObject replacement = image("a");
+        add(replacement, -1);
+        replay();
+        assertEquals(Arrays.asList("b", "c", "a"), ids());
+        assertSame(replacement, images.get("a"));
+    }
+
+    @Test
+    public void add_sameObject_isIgnored() {
+        add(images.get("a"), -1);
+        replay();
+        assertEquals(Arrays.asList("a", "b", "c"), ids());
+    }
+
+    @Test
+    public void deleteThenAdd_sameId_keepsImage() throws Exception {
+        delete("b");
+        ImageObject b = image("b");
+        add(b, -1);
+        replay();
+        assertEquals(Arrays.asList("a", "c", "b"), ids());
+        assertSame(b, images.get("b"));
+    }
+
+    @Test
+    public void addThenDelete_leavesNoTrace() throws Exception {
+        add(image("d"), 0);
+        delete("d");
+        replay();
+        assertEquals(Arrays.asList("a", "b", "c"), ids());
+        assertEquals(3, images.size());
+    }
+
+    @Test
+    public void move_afterDelete_positionSkipsDeleted() {
+        delete("a");
+        move("c", 0);
+        replay();
+        assertEquals(Arrays.asList("c", "b"), ids());
+    }
+
+    @Test
+    public void move_clampsPosition() {
+        move("a", 10);
+        move("c", -1);
+        replay();
+        assertEquals(Arrays.asList("c", "b", "a"), ids());
+    }
+
+    @Test
+    public void delete_unknownId_isIgnored() {
+        delete("x");
+        move("x", 0);
+        replay();
+        assertEquals(Arrays.asList("a", "b", "c"), ids());
+    }
+
+    @Test
+    public void clear_thenAdd_keepsOnlyNewImages() throws Exception {
+        add(image("d"), -1);
+        clear();
+        add(image("e"), -1);
+        add(image("a"), 0);
+        replay();
+        assertEquals(Arrays.asList("a", "e"), ids());
+        assertEquals(2, images.size());
+    }
+
+    private void add(ImageObject img, int position) {
+        ops.add(new ImageStore.Op(ImageStore.Op.ADD, img, img.getId(), position));
+    }
+
+    private void delete(String id) {
+        ops.add(new ImageStore.Op(ImageStore.Op.DELETE, null, id, -1));
+    }
+
+    private void move(String id, int position) {
+        ops.add(new ImageStore.Op(ImageStore.Op.MOVE, null, id, position));
+    }
+
+    private void clear() {
+        ops.add(new ImageStore.Op(ImageStore.Op.CLEAR, null, null, -1));
+    }
+
+    private void replay() {
+        ImageStore.replay(ops, images, ordered);
+    }
+
+    private List<String> ids() {
+        return ordered.stream().map(ImageObject::getId).collect(Collectors.toList());
+    }
+
+    private static ImageObject image(String id) throws Exception {
+        return new ImageObject(null, id, id, 0, "image/png", new Date(0), new Date(0));
+    }
+}
@@ -0,0 +1,88 @@
+package com.moosedrive.wallpaperer.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class BlurHashTest {
+    private static final int SIZE = 32;
+
+    @Test
+    public void encode_hasFixedLength() {
+        // 4x3 components: size flag, maximum, DC and 11 AC values
+        assertEquals(28, BlurHash.encode(solid(0x336699), SIZE, SIZE).length());
+    }
+
+    @Test
+    public void roundTrip_solidColor() {
+        int color = 0x336699;
+        int[] decoded = BlurHash.decodePixels(BlurHash.encode(solid(color), SIZE, SIZE), 8, 8);
+        assertNotNull(decoded);
+        long red = 0, green = 0, blue = 0;
+        for (int pixel : decoded) {
+            assertEquals(0xFF, pixel >>> 24);
+            // The cosine components of a flat image are small, not zero, so the edges drift a little
+            assertClose(color, pixel, 16);
+            red += red(pixel);
+            green += green(pixel);
+            blue += blue(pixel);
+        }
+        int average = (int) (red / decoded.length) << 16 | (int) (green / decoded.length) << 8 | (int) (blue / decoded.length);
+        assertClose(color, average, 4);
+    }
+
+    @Test
+    public void roundTrip_keepsLayout() {
+        // Red on the left, blue on the right
+        int[] pixels = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++)
+                pixels[y * SIZE + x] = 0xFF000000 | ((x < SIZE / 2) ? 0xFF0000 : 0x0000FF);
+        }
+        int[] decoded = BlurHash.decodePixels(BlurHash.encode(pixels, SIZE, SIZE), 16, 16);
+        assertNotNull(decoded);
+        int left = decoded[8 * 16 + 1];
+        int right = decoded[8 * 16 + 14];
+        assertTrue(red(left) > blue(left));
+        assertTrue(blue(right) > red(right));
+    }
+
+    @Test
+    public void decode_invalidHash_isNull() {
+        assertNull(BlurHash.decodePixels(null, 4, 4));
+        assertNull(BlurHash.decodePixels("", 4, 4));
+        assertNull(BlurHash.decodePixels("L00000", 4, 4));
+        // One character short of 4x3 components
+        String hash = BlurHash.encode(solid(0x336699), SIZE, SIZE);
+        assertNull(BlurHash.decodePixels(hash.substring(0, hash.length() - 1), 4, 4));
+    }
+
+    private static int[] solid(int color) {
+        int[] pixels = new int[SIZE * SIZE];
+        Arrays.fill(pixels, 0xFF000000 | color);
+        return pixels;
+    }
+
+    private static void assertClose(int expected, int actual, int tolerance) {
+        assertTrue(Math.abs(red(expected) - red(actual)) <= tolerance);
+        assertTrue(Math.abs(green(expected) - green(actual)) <= tolerance);
+        assertTrue(Math.abs(blue(expected) - blue(actual)) <= tolerance);
+    }
+
+    private static int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    private static int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    private static int blue(int color) {
+        return color & 0xFF;
+    }
+}
@@ -0,0 +1,98 @@
+package com.moosedrive.wallpaperer.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PerceptualHashTest {
+    private static final int WIDTH = 90;
+    private static final int HEIGHT = 80;
+
+    @Test
+    public void distance_countsDifferingBits() {
+        assertEquals(0, PerceptualHash.distance(0x5A5AL, 0x5A5AL));
+        assertEquals(1, PerceptualHash.distance(0L, 1L << 63));
+        assertEquals(3, PerceptualHash.distance(0b1011L, 0b0000L));
+        assertEquals(64, PerceptualHash.distance(0L, -1L));
+    }
+
+    @Test
+    public void distance_isSymmetric() {
+        long a = 0x0123456789ABCDEFL;
+        long b = 0xFEDCBA9876543210L;
+        assertEquals(PerceptualHash.distance(a, b), PerceptualHash.distance(b, a));
+    }
+
+    @Test
+    public void dHash_sameImage_isEqual() {
+        assertEquals(PerceptualHash.dHash(scene(0, 0), WIDTH, HEIGHT),
+                PerceptualHash.dHash(scene(0, 0), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void dHash_noisyBrighterCopy_isSimilar() {
+        long hash = PerceptualHash.dHash(scene(0, 0), WIDTH, HEIGHT);
+        // Roughly what recompressing and brightening does to the pixels
+        long copy = PerceptualHash.dHash(scene(20, 4), WIDTH, HEIGHT);
+        assertTrue(PerceptualHash.distance(hash, copy) <= PerceptualHash.SIMILAR_DISTANCE);
+    }
+
+    @Test
+    public void dHash_differentImage_isNotSimilar() {
+        long hash = PerceptualHash.dHash(scene(0, 0), WIDTH, HEIGHT);
+        long other = PerceptualHash.dHash(gradient(true), WIDTH, HEIGHT);
+        assertTrue(PerceptualHash.distance(hash, other) > PerceptualHash.SIMILAR_DISTANCE);
+    }
+
+    @Test
+    public void dHash_mirroredImage_isNotSimilar() {
+        long hash = PerceptualHash.dHash(gradient(false), WIDTH, HEIGHT);
+        long mirrored = PerceptualHash.dHash(gradient(true), WIDTH, HEIGHT);
+        // Every cell is brighter than its right-hand neighbour, or darker
+        assertEquals(-1L, hash);
+        assertEquals(0L, mirrored);
+    }
+
+    /**
+     * A horizontal gray gradient, getting darker to the right (or to the left if mirrored).
+     */
+    private static int[] gradient(boolean mirrored) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 255 * (mirrored ? x : WIDTH - 1 - x) / WIDTH;
+                pixels[y * WIDTH + x] = gray(value);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Some shapes on a background, so the hash has both 0 and 1 bits, brightened by an offset and
+     * with random noise of up to the given amount added.
+     */
+    private static int[] scene(int offset, int noise) {
+        Random random = new Random(1);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 40 + (x * 7 + y * 3) % 50;
+                if ((x - 30) * (x - 30) + (y - 40) * (y - 40) < 400)
+                    value = 200;
+                else if (x > 60 && y < 30)
+                    value = 120;
+                if (noise > 0)
+                    value += random.nextInt(2 * noise + 1) - noise;
+                pixels[y * WIDTH + x] = gray(value + offset);
+            }
+        }
+        return pixels;
+    }
+
+    private static int gray(int value) {
+        return 0xFF000000 | (value << 16) | (value << 8) | value;
+    }
+}
@@ -0,0 +1,191 @@
+package com.moosedrive.wallpaperer.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ThumbnailPackTest {
+    /**
+     * Byte offsets in the pack and index files, see ThumbnailPack.
+     */
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final int INDEX_PACK_LENGTH = 16;
+    private static final int INDEX_DEAD_BYTES = 24;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+    private File folder;
+    private ThumbnailPack pack;
+
+    @Before
+    public void setUp() {
+        folder = new File(temp.getRoot(), "thumbpack");
+        pack = new ThumbnailPack(folder);
+    }
+
+    @After
+    public void tearDown() {
+        pack.close();
+    }
+
+    @Test
+    public void put_thenGet() throws IOException {
+        pack.put("a", data(1, 100));
+        pack.put("b", data(2, 200));
+        assertArrayEquals(data(1, 100), pack.get("a"));
+        assertArrayEquals(data(2, 200), pack.get("b"));
+        assertNull(pack.get("c"));
+        assertEquals(0, pack.getDeadBytes());
+    }
+
+    @Test
+    public void replaceAndRemove_countDeadBytes() throws IOException {
+        pack.put("a", data(1, 100));
+        pack.put("a", data(3, 50));
+        assertArrayEquals(data(3, 50), pack.get("a"));
+        assertEquals(recordLength("a", 100), pack.getDeadBytes());
+        pack.remove("a");
+        assertFalse(pack.contains("a"));
+        assertNull(pack.get("a"));
+        assertEquals(recordLength("a", 100) + recordLength("a", 50) + recordLength("a", 0), pack.getDeadBytes());
+    }
+
+    @Test
+    public void reopen_keepsThumbnails() throws IOException {
+        pack.put("a", data(1, 100));
+        pack.put("b", data(2, 200));
+        pack.remove("b");
+        reopen();
+        assertArrayEquals(data(1, 100), pack.get("a"));
+        assertFalse(pack.contains("b"));
+    }
+
+    @Test
+    public void lostIndex_isRebuiltFromPack() throws IOException {
+        pack.put("a", data(1, 100));
+        pack.put("b", data(2, 200));
+        pack.put("a", data(3, 300));
+        pack.remove("b");
+        long dead = pack.getDeadBytes();
+        pack.close();
+        assertTrue(indexFile().delete());
+        pack = new ThumbnailPack(folder);
+        assertArrayEquals(data(3, 300), pack.get("a"));
+        assertFalse(pack.contains("b"));
+        assertEquals(dead, pack.getDeadBytes());
+    }
+
+    @Test
+    public void replay_afterCrashBeforePackLength_doesNotCountDeadBytesTwice() throws IOException {
+        pack.put("a", data(1, 100));
+        long lengthBefore = packFile().length();
+        pack.put("a", data(2, 100));
+        pack.remove("a");
+        long dead = pack.getDeadBytes();
+        pack.close();
+        // The records were applied to the index, but the process died before the pack length
+        try (RandomAccessFile index = new RandomAccessFile(indexFile(), "rw")) {
+            index.seek(INDEX_PACK_LENGTH);
+            index.writeLong(lengthBefore);
+        }
+        pack = new ThumbnailPack(folder);
+        assertFalse(pack.contains("a"));
+        assertEquals(dead, pack.getDeadBytes());
+        assertEquals(packFile().length(), pack.getDeadBytes());
+    }
+
+    @Test
+    public void replay_cutsOffPartialRecord() throws IOException {
+        pack.put("a", data(1, 100));
+        long lengthBefore = packFile().length();
+        pack.put("b", data(2, 100));
+        pack.close();
+        try (RandomAccessFile packData = new RandomAccessFile(packFile(), "rw")) {
+            packData.setLength(packFile().length() - 1);
+        }
+        try (RandomAccessFile index = new RandomAccessFile(indexFile(), "rw")) {
+            index.seek(INDEX_PACK_LENGTH);
+            index.writeLong(lengthBefore);
+        }
+        pack = new ThumbnailPack(folder);
+        assertArrayEquals(data(1, 100), pack.get("a"));
+        assertEquals(lengthBefore, packFile().length());
+    }
+
+    @Test
+    public void get_corruptDataLength_isNull() throws IOException {
+        pack.put("a", data(1, 100));
+        pack.close();
+        // A length far beyond the end of the pack must not be allocated
+        try (RandomAccessFile packData = new RandomAccessFile(packFile(), "rw")) {
+            packData.seek(6 + "a".length());
+            packData.writeInt(Integer.MAX_VALUE - 16);
+        }
+        pack = new ThumbnailPack(folder);
+        assertNull(pack.get("a"));
+    }
+
+    @Test
+    public void compact_keepsLiveThumbnailsOnly() throws IOException {
+        for (int i = 0; i < 20; i++)
+            pack.put("id" + i, data(i, 1000));
+        for (int i = 0; i < 10; i++)
+            pack.put("id" + i, data(100 + i, 500));
+        for (int i = 10; i < 15; i++)
+            pack.remove("id" + i);
+        pack.compact();
+        for (int i = 0; i < 10; i++)
+            assertArrayEquals(data(100 + i, 500), pack.get("id" + i));
+        for (int i = 10; i < 15; i++)
+            assertFalse(pack.contains("id" + i));
+        for (int i = 15; i < 20; i++)
+            assertArrayEquals(data(i, 1000), pack.get("id" + i));
+        assertEquals(0, pack.getDeadBytes());
+        assertEquals(10 * recordLength("id0", 500) + 5 * recordLength("id15", 1000), packFile().length());
+        // The compacted index is saved with the new pack
+        try (RandomAccessFile index = new RandomAccessFile(indexFile(), "r")) {
+            index.seek(INDEX_DEAD_BYTES);
+            assertEquals(0, index.readLong());
+        }
+        reopen();
+        assertArrayEquals(data(100, 500), pack.get("id0"));
+    }
+
+    private void reopen() {
+        pack.close();
+        pack = new ThumbnailPack(folder);
+    }
+
+    private File packFile() {
+        return new File(folder, "thumbs.pack");
+    }
+
+    private File indexFile() {
+        return new File(folder, "thumbs.idx");
+    }
+
+    private static long recordLength(String id, int dataLength) {
+        return RECORD_HEADER_SIZE + id.getBytes(StandardCharsets.UTF_8).length + dataLength;
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) length;
+        return data;
+    }
+}